@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Checks that shrinking the buffer pool does not lose asynchronously
+ * committed pages: commits asynchronously, shrinks the pool, takes a
+ * checkpoint, then recovers from the log as after a crash.
+ * Run from a scratch directory; the log is written to "log" there.
+ */
+public class AsyncResizeTest {
+
+    /** Enough tuples to fill several pages */
+    static final int ROWS = 1500;
+
+    public static void main(String[] argv) throws Exception {
+        File f = File.createTempFile("asyncresize", ".dat");
+        f.deleteOnExit();
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "asyncresize");
+
+        Transaction t = new Transaction();
+        t.setDurability(Transaction.Durability.ASYNC);
+        t.start();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple tup = new Tuple(table.getTupleDesc());
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+        }
+        t.commit();
+        Database.getLogFile().force();
+
+        Database.getBufferPool().resize(1);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logTruncate();
+
+        // crash: drop the pool and recover from the log
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        new LogFile(new File("log")).recover();
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println(n == ROWS ? "PASS" : "FAIL: " + n + " of " + ROWS + " tuples after recovery");
+        System.exit(n == ROWS ? 0 : 1);
+    }
+}
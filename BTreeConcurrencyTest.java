@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that concurrent inserts and deletes on a B+ tree lose no committed
+ * tuples when some of their transactions abort partway through a split or
+ * merge: several threads insert in small transactions, retrying each one
+ * that aborts, then delete half of their tuples the same way.  Afterwards
+ * the tuples reachable through the leaf sibling chain must be exactly the
+ * committed ones, and every page's parent and sibling pointers must match
+ * the tree.
+ */
+public class BTreeConcurrencyTest {
+
+    static final int THREADS = 4;
+    static final int TUPLES_PER_THREAD = 1000;
+    static final int TUPLES_PER_TRANSACTION = 5;
+
+    public static void main(String[] argv) throws Exception {
+        File f = File.createTempFile("btreeconcurrency", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+        Database.resetBufferPool(500);
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicInteger aborts = new AtomicInteger();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int me = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(me);
+                        for (int n = 0; n < TUPLES_PER_THREAD; n += TUPLES_PER_TRANSACTION) {
+                            int[] keys = new int[TUPLES_PER_TRANSACTION];
+                            for (int j = 0; j < keys.length; j++) {
+                                keys[j] = r.nextInt(TUPLES_PER_THREAD);
+                            }
+                            while (!insert(bf, keys, me)) {
+                                aborts.incrementAndGet();
+                            }
+                            committed.addAndGet(keys.length);
+                        }
+                        int deleted;
+                        do {
+                            deleted = deleteSome(bf, me);
+                            if (deleted < 0) {
+                                aborts.incrementAndGet();
+                            } else {
+                                committed.addAndGet(-deleted);
+                            }
+                        } while (deleted != 0);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!failures.isEmpty()) {
+            failures.get(0).printStackTrace();
+            fail("a thread failed");
+        }
+
+        TransactionId tid = new TransactionId();
+        int n = checkTree(bf, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        if (n != committed.get()) {
+            fail(n + " tuples in the tree, " + committed.get() + " committed");
+        }
+        System.out.println("PASS: " + n + " tuples, " + aborts.get() + " aborts retried");
+        System.exit(0);
+    }
+
+    /** Insert one tuple per key with the given tag in one transaction; false if it aborted. */
+    static boolean insert(BTreeFile bf, int[] keys, int tag) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            for (int key : keys) {
+                Tuple tup = new Tuple(bf.getTupleDesc());
+                tup.setField(0, new IntField(key));
+                tup.setField(1, new IntField(tag));
+                Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+            }
+            t.commit();
+            return true;
+        } catch (TransactionAbortedException e) {
+            t.abort();
+            return false;
+        }
+    }
+
+    /**
+     * Delete up to TUPLES_PER_TRANSACTION of the tuples with the given tag
+     * from the left half of the key range, in one transaction.
+     *
+     * @return the number deleted, or -1 if the transaction aborted
+     */
+    static int deleteSome(BTreeFile bf, int tag) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            List<Tuple> mine = new ArrayList<Tuple>();
+            DbFileIterator it = bf.iterator(t.getId());
+            it.open();
+            while (it.hasNext() && mine.size() < TUPLES_PER_TRANSACTION) {
+                Tuple tup = it.next();
+                if (((IntField)tup.getField(1)).getValue() == tag &&
+                        ((IntField)tup.getField(0)).getValue() < TUPLES_PER_THREAD / 2) {
+                    mine.add(tup);
+                }
+            }
+            it.close();
+            for (Tuple tup : mine) {
+                Database.getBufferPool().deleteTuple(t.getId(), tup);
+            }
+            t.commit();
+            return mine.size();
+        } catch (TransactionAbortedException e) {
+            t.abort();
+            return -1;
+        }
+    }
+
+    /**
+     * Check the parent pointers of every page reachable from the root and
+     * the sibling pointers of the leaves, which must list those leaves in
+     * key order.
+     *
+     * @return the number of tuples in the leaves
+     */
+    static int checkTree(BTreeFile bf, TransactionId tid) throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage)Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        List<BTreePageId> leaves = new ArrayList<BTreePageId>();
+        collectLeaves(tid, rootPtr.getRootId(), rootPtr.getId(), leaves);
+
+        int tuples = 0;
+        BTreePageId prev = null;
+        BTreePageId cur = leaves.get(0);
+        int i = 0;
+        while (cur != null) {
+            if (i >= leaves.size() || !cur.equals(leaves.get(i))) {
+                fail("sibling chain reaches " + cur + " where the tree has "
+                     + (i < leaves.size() ? leaves.get(i) : "no more leaves"));
+            }
+            BTreeLeafPage leaf = (BTreeLeafPage)Database.getBufferPool().getPage(
+                    tid, cur, Permissions.READ_ONLY);
+            if (prev == null ? leaf.getLeftSiblingId() != null : !prev.equals(leaf.getLeftSiblingId())) {
+                fail("leaf " + cur + " has left sibling " + leaf.getLeftSiblingId() + ", not " + prev);
+            }
+            tuples += leaf.getNumTuples();
+            prev = cur;
+            cur = leaf.getRightSiblingId();
+            i++;
+        }
+        if (i != leaves.size()) {
+            fail("sibling chain ends after " + i + " of " + leaves.size() + " leaves");
+        }
+        return tuples;
+    }
+
+    private static void collectLeaves(TransactionId tid, BTreePageId pid, BTreePageId parent,
+                                      List<BTreePageId> leaves) throws Exception {
+        BTreePage page = (BTreePage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        if (!page.getParentId().equals(parent)) {
+            fail("page " + pid + " has parent " + page.getParentId() + ", not " + parent);
+        }
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            leaves.add(pid);
+            return;
+        }
+        Iterator<BTreeEntry> it = ((BTreeInternalPage)page).iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            collectLeaves(tid, e.getLeftChild(), pid, leaves);
+        }
+        collectLeaves(tid, e.getRightChild(), pid, leaves);
+    }
+
+    private static void fail(String why) {
+        System.out.println("FAIL: " + why);
+        System.exit(1);
+    }
+}
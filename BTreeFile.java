@@ -21,6 +21,56 @@ import simpledb.Predicate.Op;
  */
 public class BTreeFile implements DbFile {
 
+	/**
+	 * The dirtypages map of one insert or delete.  Remembers the data of each page as
+	 * it was when the operation first fetched it for writing, so that the operation can
+	 * be undone when it must release its latches to wait for a lock.
+	 */
+	private static class OperationPages extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+
+		final HashMap<PageId, byte[]> before = new HashMap<PageId, byte[]>();
+		final HashMap<PageId, Tuple[]> slots = new HashMap<PageId, Tuple[]>();
+
+		public Page put(PageId pid, Page p) {
+			if(!before.containsKey(pid)) {
+				before.put(pid, p.getPageData());
+				if(p instanceof BTreeLeafPage) {
+					// callers may hold these tuples, which moving them changes
+					slots.put(pid, ((BTreeLeafPage) p).getSlots());
+				}
+			}
+			return super.put(pid, p);
+		}
+
+		/** Replaces the page for pid without taking its data as the data to undo to. */
+		void restore(PageId pid, Page p) {
+			super.put(pid, p);
+		}
+
+		public void clear() {
+			before.clear();
+			slots.clear();
+			super.clear();
+		}
+	}
+
+	/**
+	 * Thrown by getPage during an insert or delete, in place of waiting for a page lock
+	 * while holding latches.  The operation is undone and retried once the lock is held.
+	 */
+	private static class LockNotFreeException extends TransactionAbortedException {
+		private static final long serialVersionUID = 1L;
+
+		final PageId pid;
+		final Permissions perm;
+
+		LockNotFreeException(PageId pid, Permissions perm) {
+			this.pid = pid;
+			this.perm = perm;
+		}
+	}
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
@@ -177,10 +227,11 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting the search at page pid.  Internal
+	 * pages along the path are not locked but latched with latch coupling (crabbing):
+	 * each page is latched before the latch on its parent is released.  The leaf node
+	 * is locked with permission perm.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -190,25 +241,234 @@ public class BTreeFile implements DbFile {
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
+	 * @see #descend(TransactionId, HashMap, BTreePageId, Permissions, Permissions, Field, BTreePageId, LinkedList)
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		if (pid.pgcateg() == BTreePageId.LEAF) {
-			return (BTreeLeafPage)(this.getPage(tid, dirtypages, pid, perm));
+		return descend(tid, dirtypages, pid, Permissions.READ_ONLY, perm, f, null, new LinkedList<BTreePageId>());
+	}
+
+	/**
+	 * Finds and locks the leaf page for key field f, starting from the root pointer page,
+	 * which is latched rather than locked like the internal pages.  Returns null if the
+	 * tree has no root yet.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return descend(tid, new HashMap<PageId, Page>(), BTreeRootPtrPage.getId(tableid),
+				Permissions.READ_ONLY, perm, f, null, new LinkedList<BTreePageId>());
+	}
+
+	/**
+	 * Descends from page pid to the leaf page for key field f, latching the root pointer
+	 * and internal pages on the way.
+	 * 
+	 * With latchMode READ_ONLY the latches are shared and each is released as soon as the
+	 * child's latch is held.  With latchMode READ_WRITE they are exclusive, and the latches
+	 * above a page are only released once that page has an empty slot, since a split below
+	 * it can then not reach them.  The latches still held when this returns, in root to
+	 * leaf order, are left in latched for the caller to release.
+	 * 
+	 * To delete from a given leaf, pass it as target, with latchMode READ_WRITE.  The
+	 * descent then follows the leaf's ancestors, which tells it apart from other leaves
+	 * holding the same key, and releases the latches above a page once that page can lose
+	 * an entry without falling below half full, since a merge below it can then not reach
+	 * them.  If the tree changed so that the descent misses target, it starts over.
+	 * 
+	 * The leaf page is locked with permission perm without waiting, since the lock holder
+	 * may need one of our latches.  If the lock is not free, all latches are released, the
+	 * lock is waited for, and the descent starts over from pid.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to start from, the root pointer page or any page below it
+	 * @param latchMode - READ_ONLY for shared latches, READ_WRITE for exclusive ones
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @param target - the leaf to delete from, or null to insert or search
+	 * @param latched - receives the latches still held on return
+	 * @return the leaf page, or null if the tree has no root and latchMode is READ_ONLY
+	 */
+	private BTreeLeafPage descend(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions latchMode, Permissions perm, Field f, BTreePageId target,
+			LinkedList<BTreePageId> latched)
+					throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		try {
+			while (true) {
+				HashSet<BTreePageId> path = null;
+				if (target != null) {
+					path = ancestorsOf(tid, dirtypages, target);
+				}
+				BTreePageId cur = pid;
+				if (cur.pgcateg() == BTreePageId.ROOT_PTR) {
+					bp.latchPage(cur, latchMode);
+					latched.addLast(cur);
+					BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getLatchedPage(tid, dirtypages, cur);
+					BTreePageId rootId = rootPtr.getRootId();
+					if (rootId == null) {
+						if (latchMode == Permissions.READ_ONLY) {
+							unlatchAll(latched, latchMode);
+							return null;
+						}
+						// the root has just been created, so set the root pointer to point to it
+						rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+						rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, cur, Permissions.READ_WRITE);
+						rootPtr.setRootId(rootId);
+					}
+					cur = rootId;
+				}
+
+				while (cur.pgcateg() == BTreePageId.INTERNAL) {
+					bp.latchPage(cur, latchMode);
+					BTreeInternalPage inPage = (BTreeInternalPage) getLatchedPage(tid, dirtypages, cur);
+					boolean safe;
+					if (latchMode == Permissions.READ_ONLY) {
+						safe = true;
+					} else if (target == null) {
+						safe = inPage.getNumEmptySlots() > 0;
+					} else {
+						safe = canLoseEntry(inPage);
+					}
+					if (safe) {
+						unlatchAll(latched, latchMode);
+					}
+					latched.addLast(cur);
+					cur = target == null ? childFor(inPage, f) : childOnPath(inPage, f, path);
+				}
+
+				if (target != null && !(cur.equals(target))) {
+					// a split or merge moved target since its ancestors were read
+					unlatchAll(latched, latchMode);
+					continue;
+				}
+
+				Page leaf = dirtypages.get(cur);
+				if (leaf == null) {
+					leaf = bp.tryGetPage(tid, cur, perm);
+				}
+				if (leaf == null) {
+					// wait for the lock without holding latches, then start over
+					// since the tree may have changed meanwhile
+					unlatchAll(latched, latchMode);
+					bp.getPage(tid, cur, perm);
+					continue;
+				}
+				if (perm == Permissions.READ_WRITE) {
+					dirtypages.put(cur, leaf);
+				}
+				if (latchMode == Permissions.READ_ONLY) {
+					unlatchAll(latched, latchMode);
+				}
+				return (BTreeLeafPage) leaf;
+			}
+		} catch (DbException e) {
+			unlatchAll(latched, latchMode);
+			throw e;
+		} catch (TransactionAbortedException e) {
+			unlatchAll(latched, latchMode);
+			throw e;
 		}
-		BTreeInternalPage inPage = (BTreeInternalPage)(this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
+	}
+
+	/** Returns the child of an internal page whose subtree holds the left-most match for f. */
+	private BTreePageId childFor(BTreeInternalPage inPage, Field f) {
 		Iterator<BTreeEntry> pIt = inPage.iterator();
 		BTreeEntry bEntry = null; 
 		while(pIt != null && pIt.hasNext()) {
 			bEntry = pIt.next();
 			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, bEntry.getKey())) {
-				return this.findLeafPage(tid, dirtypages, bEntry.getLeftChild(), Permissions.READ_ONLY, f);
+				return bEntry.getLeftChild();
+			}
+		}
+		return bEntry.getRightChild();
+	}
+
+	/**
+	 * Returns true if an entry can be deleted from inPage without a merge or redistribution
+	 * reaching its parent: the root as long as it does not become empty, other pages as
+	 * long as they stay at least half full.
+	 */
+	private boolean canLoseEntry(BTreeInternalPage inPage) {
+		if (inPage.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			return inPage.getNumEntries() > 1;
+		}
+		int maxEmptySlots = inPage.getMaxEntries() - inPage.getMaxEntries()/2; // ceiling
+		return inPage.getNumEmptySlots() < maxEmptySlots;
+	}
+
+	/** Returns the child of an internal page that is in path, or else the one childFor picks. */
+	private BTreePageId childOnPath(BTreeInternalPage inPage, Field f, HashSet<BTreePageId> path) {
+		Iterator<BTreeEntry> it = inPage.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (path.contains(e.getLeftChild())) {
+				return e.getLeftChild();
+			}
+			if (path.contains(e.getRightChild())) {
+				return e.getRightChild();
+			}
+		}
+		return childFor(inPage, f);
+	}
+
+	/**
+	 * Returns leaf and the internal pages above it, read by following parent pointers
+	 * under short shared latches, one page at a time.  The caller holds leaf's lock.
+	 */
+	private HashSet<BTreePageId> ancestorsOf(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId leaf) throws DbException, TransactionAbortedException {
+		HashSet<BTreePageId> path = new HashSet<BTreePageId>();
+		path.add(leaf);
+		BTreePageId cur = ((BTreePage) getPage(tid, dirtypages, leaf, Permissions.READ_WRITE)).getParentId();
+		BufferPool bp = Database.getBufferPool();
+		while (cur.pgcateg() == BTreePageId.INTERNAL) {
+			path.add(cur);
+			BTreePageId parentId;
+			bp.latchPage(cur, Permissions.READ_ONLY);
+			try {
+				parentId = ((BTreePage) getLatchedPage(tid, dirtypages, cur)).getParentId();
+			} finally {
+				bp.unlatchPage(cur, Permissions.READ_ONLY);
+			}
+			cur = parentId;
+		}
+		return path;
+	}
+
+	/** Returns a latched page from dirtypages, or from the buffer pool without locking it. */
+	private Page getLatchedPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		Page p = dirtypages.get(pid);
+		if (p != null) {
+			return p;
+		}
+		return Database.getBufferPool().getLatchedPage(tid, pid);
+	}
+
+	/** Releases and forgets all latches in latched. */
+	private void unlatchAll(LinkedList<BTreePageId> latched, Permissions latchMode) {
+		while (!(latched.isEmpty())) {
+			Database.getBufferPool().unlatchPage(latched.removeFirst(), latchMode);
+		}
+	}
+
+	/**
+	 * Releases the exclusive latches getPage took on the pages in dirtypages, at the end
+	 * of an insert or delete.
+	 */
+	private void unlatchDirtyPages(HashMap<PageId, Page> dirtypages) {
+		for (PageId pid : dirtypages.keySet()) {
+			if (((BTreePageId) pid).pgcateg() != BTreePageId.LEAF) {
+				Database.getBufferPool().unlatchPage(pid, Permissions.READ_WRITE);
 			}
 		}
-		return this.findLeafPage(tid, dirtypages, bEntry.getRightChild(), Permissions.READ_ONLY, f);	
 	}
 	
 	/**
@@ -452,7 +712,13 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction.  Such pages, unless they are leaf pages,
+	 * are also latched exclusively until the end of the current insert or delete, so that
+	 * concurrent traversals never see them half-modified.
+	 * 
+	 * Within an insert or delete, which may hold latches, the page lock is not waited for:
+	 * if it is not free, LockNotFreeException is thrown so that the operation can be undone
+	 * and retried after waiting for the lock without latches.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -473,7 +739,25 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			boolean latch = perm == Permissions.READ_WRITE && pid.pgcateg() != BTreePageId.LEAF;
+			if(latch) {
+				Database.getBufferPool().latchPage(pid, perm);
+			}
+			Page p = null;
+			try {
+				if(dirtypages instanceof OperationPages) {
+					p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+					if(p == null) {
+						throw new LockNotFreeException(pid, perm);
+					}
+				} else {
+					p = Database.getBufferPool().getPage(tid, pid, perm);
+				}
+			} finally {
+				if(latch && p == null) {
+					Database.getBufferPool().unlatchPage(pid, perm);
+				}
+			}
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -493,28 +777,46 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		OperationPages dirtypages = new OperationPages();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// create the root pointer page and root page if necessary
+		getRootPtrPage(tid, dirtypages);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+		while(true) {
+			LinkedList<BTreePageId> latched = new LinkedList<BTreePageId>();
+			LockNotFreeException busy = null;
+			boolean done = false;
+			try {
+				// find and lock the left-most leaf page corresponding to the key field,
+				// crabbing down with shared latches since most inserts don't split
+				BTreeLeafPage leafPage = descend(tid, dirtypages, rootPtrId, Permissions.READ_ONLY, 
+						Permissions.READ_WRITE, t.getField(keyField), null, latched);
+				if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+					// descend again, keeping exclusive latches on the pages a split may reach,
+					// and split the leaf page if there are still no slots available
+					leafPage = descend(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, 
+							Permissions.READ_WRITE, t.getField(keyField), null, latched);
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+					}
+				}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+				// insert the tuple into the leaf page
+				leafPage.insertTuple(t);
+				done = true;
+			} catch (LockNotFreeException e) {
+				busy = e;
+			} finally {
+				endOperation(tid, dirtypages, latched, done, busy != null);
+			}
+			if(busy == null) {
+				break;
+			}
+			// wait for the lock without holding latches, then start over
+			Database.getBufferPool().getPage(tid, busy.pid, busy.perm);
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
@@ -953,18 +1255,46 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		OperationPages dirtypages = new OperationPages();
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
+		RecordId rid = t.getRecordId();
+		BTreePageId pageId = new BTreePageId(tableid, rid.getPageId().pageNumber(), 
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		while(true) {
+			LinkedList<BTreePageId> latched = new LinkedList<BTreePageId>();
+			LockNotFreeException busy = null;
+			boolean done = false;
+			// a try that was undone may have cleared the record id already
+			t.setRecordId(rid);
+			try {
+				// lock the leaf page first; most deletes leave it at least half full and
+				// need no latches at all
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() + 1 > maxEmptySlots) {
+					// descend to it from the root, keeping exclusive latches on the pages
+					// a merge or redistribution may reach
+					page = descend(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE,
+							Permissions.READ_WRITE, t.getField(keyField), pageId, latched);
+				}
+				page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+				// if the page is below minimum occupancy, get some tuples from its siblings
+				// or merge with one of the siblings
+				if(page.getNumEmptySlots() > maxEmptySlots) { 
+					handleMinOccupancyPage(tid, dirtypages, page);
+				}
+				done = true;
+			} catch (LockNotFreeException e) {
+				busy = e;
+			} finally {
+				endOperation(tid, dirtypages, latched, done, busy != null);
+			}
+			if(busy == null) {
+				break;
+			}
+			// wait for the lock without holding latches, then start over
+			Database.getBufferPool().getPage(tid, busy.pid, busy.perm);
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -973,8 +1303,81 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Finishes an insert or delete, releasing its latches.  One that did not complete is
+	 * undone first.  If it is to be retried its pages are forgotten; otherwise it failed
+	 * for good, and its pages are handed to the buffer pool so that aborting tid restores
+	 * them whatever state they are in.
+	 * 
+	 * @param done - true if the operation completed
+	 * @param retry - true if the operation will be retried
+	 */
+	private void endOperation(TransactionId tid, OperationPages dirtypages, LinkedList<BTreePageId> latched,
+			boolean done, boolean retry) throws IOException {
+		try {
+			if(!done) {
+				undo(tid, dirtypages);
+				if(!retry) {
+					Database.getBufferPool().markChanged(tid, dirtypages.values());
+				}
+			}
+		} finally {
+			unlatchAll(latched, Permissions.READ_WRITE);
+			unlatchDirtyPages(dirtypages);
+			if(retry) {
+				dirtypages.clear();
+			}
+		}
+	}
+
+	/**
+	 * Puts back the pages an insert or delete changed as they were when it first fetched
+	 * them for writing, keeping the before images and dirty state the buffer pool tracks.
+	 * The caller still holds the operation's latches and locks.
+	 */
+	private void undo(TransactionId tid, OperationPages dirtypages) throws IOException {
+		for (PageId pid : new ArrayList<PageId>(dirtypages.keySet())) {
+			Page cur = dirtypages.get(pid);
+			byte[] data = dirtypages.before.get(pid);
+			if(Arrays.equals(data, cur.getPageData())) {
+				continue;
+			}
+			Page restored = rebuildPage((BTreePageId) pid, data, cur.getBeforeImage().getPageData());
+			if(dirtypages.slots.containsKey(pid)) {
+				((BTreeLeafPage) restored).restoreSlots(dirtypages.slots.get(pid));
+			}
+			restored.markDirty(cur.isDirty() != null, cur.isDirty());
+			Database.getBufferPool().replacePage(tid, restored);
+			dirtypages.restore(pid, restored);
+		}
+	}
+
+	/** Builds a page of this file from data, with beforeImage as its before image. */
+	private Page rebuildPage(BTreePageId pid, byte[] data, byte[] beforeImage) throws IOException {
+		if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage p = new BTreeRootPtrPage(pid, data);
+			p.setBeforeImage(beforeImage);
+			return p;
+		}
+		else if(pid.pgcateg() == BTreePageId.HEADER) {
+			BTreeHeaderPage p = new BTreeHeaderPage(pid, data);
+			p.setBeforeImage(beforeImage);
+			return p;
+		}
+		BTreePage p;
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			p = new BTreeInternalPage(pid, data, keyField);
+		}
+		else {
+			p = new BTreeLeafPage(pid, data, keyField);
+		}
+		p.setBeforeImage(beforeImage);
+		return p;
+	}
+
+	/**
+	 * Read the root pointer page under a short shared latch, without locking it, so that
+	 * root splits don't wait for every transaction that used the tree. Create the root
+	 * pointer page and root page if necessary.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
@@ -997,8 +1400,16 @@ public class BTreeFile implements DbFile {
 			}
 		}
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(dirtypages.containsKey(rootPtrId)) {
+			return (BTreeRootPtrPage) dirtypages.get(rootPtrId);
+		}
+		Database.getBufferPool().latchPage(rootPtrId, Permissions.READ_ONLY);
+		try {
+			return (BTreeRootPtrPage) Database.getBufferPool().getLatchedPage(tid, rootPtrId);
+		} finally {
+			Database.getBufferPool().unlatchPage(rootPtrId, Permissions.READ_ONLY);
+		}
 	}
 
 	/**
@@ -1091,7 +1502,10 @@ public class BTreeFile implements DbFile {
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		if(dirtypages.remove(newPageId) != null && pgcateg != BTreePageId.LEAF) {
+			// getPage below latches it again
+			Database.getBufferPool().unlatchPage(newPageId, Permissions.READ_WRITE);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1143,7 +1557,9 @@ public class BTreeFile implements DbFile {
 		// the header pointer in the BTreeRootPtrPage
 		if(headerId == null) {
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
+			headerId = rootPtr.getHeaderId();
+		}
+		if(headerId == null) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
 			headerId = headerPage.getId();
 			headerPage.init();
@@ -1235,11 +1651,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1320,17 +1733,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
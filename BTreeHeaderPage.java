@@ -113,6 +113,17 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/**
+	 * Set the before image to data, for a page rebuilt to undo changes
+	 * that are not committed yet.
+	 */
+	void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data.clone();
+		}
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -434,6 +434,27 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Returns the tuples in the slots of this page, with null for empty slots
+	 */
+	Tuple[] getSlots() {
+		return tuples.clone();
+	}
+
+	/**
+	 * Put back the tuples getSlots returned, into a page rebuilt from the data it had
+	 * then, so that callers still holding those tuples see their record ids restored
+	 * @param slots - the tuples getSlots returned
+	 */
+	void restoreSlots(Tuple[] slots) {
+		for (int i=0; i<tuples.length; i++) {
+			if(isSlotUsed(i) && slots[i] != null) {
+				tuples[i] = slots[i];
+				tuples[i].setRecordId(new RecordId(pid, i));
+			}
+		}
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
@@ -112,6 +112,17 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Set the before image to data, for a page rebuilt to undo changes
+	 * that are not committed yet.
+	 */
+	void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock)
+		{
+			oldData = data.clone();
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -51,6 +51,14 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * Set the before image to data, for a page rebuilt to undo changes
+	 * that are not committed yet.
+	 */
+	void setBeforeImage(byte[] data) {
+		oldData = data.clone();
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -1,10 +1,33 @@
 
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +37,20 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Read-only transactions registered with beginSnapshot take no locks.
+ * Each commit gets a timestamp from a commit clock, and while snapshots
+ * are open the committed image a commit replaces is kept as a version
+ * tagged with the interval of timestamps in which it was current.  A
+ * snapshot transaction reads, for every page, the image that was committed
+ * when it began.  Versions no snapshot can see any more are dropped by a
+ * background collector.
+ * <p>
+ * Optimistic transactions registered with beginOptimistic take no locks
+ * while they run either.  They read committed images and write private
+ * copies kept in a workspace, and validateOptimistic checks at commit that
+ * no page they read was committed by anyone else since they began before
+ * the copies are installed in the pool.
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,10 +65,146 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Largest run of consecutive pages the preloader reads at once. */
+    private static final int PRELOAD_RUN = 32;
+
+    /** Start of a resident page list written by saveResidentPages. */
+    private static final int RESIDENT_PAGES_MAGIC = 0x53445250; // "SDRP"
+
+    /** Version of the resident page list format, bumped whenever the way
+        page ids are written changes. */
+    private static final int RESIDENT_PAGES_VERSION = 2;
+
+    /** Compressed bytes the second-tier cache may hold per page of the pool. */
+    public static final int DEFAULT_SECOND_TIER_BYTES_PER_PAGE = PAGE_SIZE;
+
     private ConcurrentHashMap<PageId, Page> cache;
     private LockManager LM;
-    private int numPages;
-    private PageId usedID = null;
+    private volatile int numPages;
+
+    /** Access clock and the tick of each cached page's last access, for LRU eviction. */
+    private AtomicLong clock;
+    private ConcurrentHashMap<PageId, Long> lastAccess;
+
+    /** Optional per-table frame quotas, keyed by table id. */
+    private ConcurrentHashMap<Integer, TableQuota> quotas;
+
+    /** Clean pages evicted from the pool are demoted here. */
+    private CompressedPageCache secondTier;
+
+    /** Periodically writes the resident page ids to the hot page file. */
+    private Timer hotPageDumper = null;
+
+    private static class TableQuota {
+    	final int minPages;
+    	final int maxPages;
+
+    	TableQuota(int minPages, int maxPages) {
+    		this.minPages = minPages;
+    		this.maxPages = maxPages;
+    	}
+    }
+
+    /** Milliseconds to wait for a page latch before giving up and aborting. */
+    public static final long LATCH_TIMEOUT = 1000;
+
+    /** Number of page latches; pages whose ids hash alike share one. */
+    public static final int LATCH_STRIPES = 1024;
+
+    /** Milliseconds between two runs of the version garbage collector. */
+    public static final long VERSION_GC_INTERVAL = 1000;
+
+    /** A committed page image and the commit timestamps [from, to) it was current for. */
+    private static class PageVersion {
+    	final long from;
+    	final long to;
+    	final Page page;
+
+    	PageVersion(long from, long to, Page page) {
+    		this.from = from;
+    		this.to = to;
+    		this.page = page;
+    	}
+    }
+
+    /** The private state of an optimistic transaction. */
+    private static class Workspace {
+    	/** Commit timestamp the transaction began at. */
+    	final long startTs;
+    	/** Private copies of the pages the transaction writes. */
+    	final HashMap<PageId, Page> writes = new HashMap<PageId, Page>();
+    	final HashSet<PageId> reads = new HashSet<PageId>();
+
+    	Workspace(long startTs) {
+    		this.startTs = startTs;
+    	}
+    }
+
+    /** Order in which optimistic transactions lock their write sets, to avoid deadlocks among them. */
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+    	public int compare(PageId a, PageId b) {
+    		if (a.getTableId() != b.getTableId()) {
+    			return a.getTableId() < b.getTableId() ? -1 : 1;
+    		}
+    		return a.pageNumber() < b.pageNumber() ? -1 : (a.pageNumber() == b.pageNumber() ? 0 : 1);
+    	}
+    };
+
+    /**
+     * Guards commitClock updates, versions, pageCommitTs, pageWriteTs,
+     * validatedWrites and the snapshot and workspace registrations.  It is
+     * also the commit lock under which optimistic transactions validate.
+     */
+    private final Object versionLock = new Object();
+    private AtomicLong commitClock;
+    /** Old committed images, newest first, while a snapshot may need them. */
+    private HashMap<PageId, LinkedList<PageVersion>> versions;
+    /** Commit timestamp of the current committed image, if newer than some snapshot. */
+    private HashMap<PageId, Long> pageCommitTs;
+    /** Open snapshot transactions and the commit timestamp they read at. */
+    private ConcurrentHashMap<TransactionId, Long> snapshots;
+    /**
+     * Pages written to disk by a committing transaction whose new image
+     * is not yet visible to snapshots.  They are kept resident, so that
+     * their before image still holds the committed version.
+     */
+    private Set<PageId> committing;
+    /**
+     * Pages holding updates of asynchronously committed transactions that
+     * are logged but not yet written to their files.  They stay in the
+     * dirty page table, and are written after forcing the log when they
+     * are evicted, checkpointed, flushed or rolled back over.
+     */
+    private Set<PageId> unflushed;
+    private Timer versionCollector = null;
+    /**
+     * Read-only copies of committed images of resident pages, shared by
+     * snapshot readers so that each page is copied once per commit.
+     */
+    private ConcurrentHashMap<PageId, Page> committedCopies;
+
+    /** Running optimistic transactions. */
+    private ConcurrentHashMap<TransactionId, Workspace> workspaces;
+    /** Latest commit timestamp of each page, while an optimistic transaction may need it. */
+    private HashMap<PageId, Long> pageWriteTs;
+    /** Write sets of optimistic transactions that passed validation but have not completed. */
+    private HashMap<TransactionId, Set<PageId>> validatedWrites;
+
+    /**
+     * Short-term page latches, separate from the transactional locks, in a
+     * fixed array so that they take no memory per page ever latched.
+     */
+    private final ReentrantReadWriteLock[] latches;
+
+    /** Dirty page table: page id -> log offset when the page was first dirtied. */
+    private ConcurrentHashMap<PageId, Long> dirtyPageTable;
+
+    /**
+     * Pages each running transaction has dirtied.  Kept apart from the lock
+     * sets, since a page lock may be released early or be covered by a
+     * table lock.
+     */
+    private ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedBy;
     
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -39,11 +212,115 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, LockManager.DeadlockPolicy.DETECT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and resolves
+     * lock conflicts with the given deadlock policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy how the lock manager handles deadlocks
+     */
+    public BufferPool(int numPages, LockManager.DeadlockPolicy policy) {
         this.numPages = numPages;
         this.cache = new ConcurrentHashMap<PageId, Page>();
-        this.LM = new LockManager();
+        this.LM = new LockManager(policy);
+        this.dirtyPageTable = new ConcurrentHashMap<PageId, Long>();
+        this.dirtiedBy = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.clock = new AtomicLong(0);
+        this.lastAccess = new ConcurrentHashMap<PageId, Long>();
+        this.quotas = new ConcurrentHashMap<Integer, TableQuota>();
+        this.secondTier = new CompressedPageCache(
+        		(long)numPages * DEFAULT_SECOND_TIER_BYTES_PER_PAGE);
+        this.commitClock = new AtomicLong(0);
+        this.versions = new HashMap<PageId, LinkedList<PageVersion>>();
+        this.pageCommitTs = new HashMap<PageId, Long>();
+        this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+        this.committing = ConcurrentHashMap.<PageId>newKeySet();
+        this.unflushed = ConcurrentHashMap.<PageId>newKeySet();
+        this.committedCopies = new ConcurrentHashMap<PageId, Page>();
+        this.latches = new ReentrantReadWriteLock[LATCH_STRIPES];
+        for (int i = 0; i < LATCH_STRIPES; i++) {
+        	this.latches[i] = new ReentrantReadWriteLock();
+        }
+        this.workspaces = new ConcurrentHashMap<TransactionId, Workspace>();
+        this.pageWriteTs = new HashMap<PageId, Long>();
+        this.validatedWrites = new HashMap<TransactionId, Set<PageId>>();
     }
     
+    /**
+     * Grows or shrinks the pool while it is in use.  When shrinking, clean
+     * pages are evicted until the pool fits; dirty pages stay resident until
+     * their transactions complete, after which later misses evict them.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool.
+     * @throws IOException if an asynchronously committed victim cannot be written
+     */
+    public synchronized void resize(int numPages) throws IOException {
+    	if (numPages <= 0) {
+    		throw new IllegalArgumentException("buffer pool must hold at least one page");
+    	}
+    	this.numPages = numPages;
+    	while (this.cache.size() > numPages) {
+    		PageId victim = this.chooseVictim(null);
+    		if (victim == null) {
+    			break;
+    		}
+    		this.removeVictim(victim);
+    	}
+    }
+
+    /** @return the maximum number of pages in this buffer pool. */
+    public int getNumPages() {
+    	return this.numPages;
+    }
+
+    /**
+     * Sets frame quotas for a table.  Pages of a table at or below its
+     * minimum are only evicted when nothing else can be; a table at its
+     * maximum must evict one of its own pages to bring in another.
+     *
+     * @param tableId the table to limit
+     * @param minPages frames reserved for the table, or 0 for none
+     * @param maxPages frames the table may occupy, or 0 for no limit
+     */
+    public void setTableQuota(int tableId, int minPages, int maxPages) {
+    	if (minPages < 0 || maxPages < 0 || (maxPages > 0 && minPages > maxPages)) {
+    		throw new IllegalArgumentException("invalid quota " + minPages + ".." + maxPages);
+    	}
+    	this.quotas.put(tableId, new TableQuota(minPages, maxPages));
+    }
+
+    /**
+     * Sets the byte budget of the compressed second-tier cache that holds
+     * clean pages evicted from the pool.  0 disables the second tier.
+     */
+    public void setSecondTierCapacity(long bytes) {
+    	this.secondTier.setCapacity(bytes);
+    	if (bytes <= 0) {
+    		this.secondTier.clear();
+    	}
+    }
+
+    /** @return the compressed second-tier cache, e.g. to read its hit counts */
+    public CompressedPageCache getSecondTier() {
+    	return this.secondTier;
+    }
+
+    /** Removes the frame quotas of a table. */
+    public void clearTableQuota(int tableId) {
+    	this.quotas.remove(tableId);
+    }
+
+    /**
+     * Sets how many page locks a transaction may take on one table before
+     * they are escalated to a single table lock; 0 disables escalation.
+     */
+    public void setLockEscalationThreshold(int pages) {
+    	this.LM.setEscalationThreshold(pages);
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -63,11 +340,11 @@ public class BufferPool {
      * Will acquire a lock and may block if that lock is held by another
      * transaction.
      * <p>
-     * The retrieved page should be looked up in the buffer pool.  If it
-     * is present, it should be returned.  If it is not present, it should
-     * be added to the buffer pool and returned.  If there is insufficient
-     * space in the buffer pool, an page should be evicted and the new page
-     * should be added in its place.
+     * The lock is acquired before the page is looked up, so a transaction
+     * that blocks or aborts on the lock never reads the page or evicts
+     * another page to make room for it.  Once the lock is held, the page is
+     * returned from the buffer pool if present; otherwise it is added to the
+     * buffer pool, evicting a page if there is insufficient space.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -75,19 +352,391 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        if (this.cache.size() >= this.numPages) {
-        	this.evictPage();
+        Long snapshot = this.snapshots.get(tid);
+        if (snapshot != null) {
+        	if (perm != Permissions.READ_ONLY) {
+        		throw new DbException("read-only transaction " + tid.getId() + " cannot write " + pid);
+        	}
+        	return this.getSnapshotPage(pid, snapshot);
         }
-
-        if (!(this.cache.containsKey(pid))) {
-        	Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        	p.setBeforeImage();
-	        this.cache.put(pid, p);
+        Workspace ws = this.workspaces.get(tid);
+        if (ws != null) {
+        	return this.getWorkspacePage(ws, pid, perm);
         }
 
-        this.usedID = pid;
         this.LM.getLock(tid, pid, perm);
-        return this.cache.get(pid);
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Like getPage, but returns null instead of waiting if the lock can't
+     * be granted right away.  Lets a caller that holds page latches back
+     * off rather than wait for a lock while holding them.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (this.snapshots.containsKey(tid) || this.workspaces.containsKey(tid)) {
+        	return this.getPage(tid, pid, perm);
+        }
+        if (!(this.LM.tryGetLock(tid, pid, perm))) {
+        	return null;
+        }
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Latch a page for the duration of a single access method operation,
+     * shared for READ_ONLY and exclusive for READ_WRITE.  Latches are not
+     * transactional locks: they are not released at commit, are not seen
+     * by the deadlock detector, and may be re-acquired by the same thread.
+     * Since a latch holder may wait for a lock, a latch that can't be
+     * had within LATCH_TIMEOUT aborts the requester.  Pages may share a
+     * latch, which then only makes their latching callers wait on each
+     * other now and then.
+     *
+     * @throws TransactionAbortedException if the latch could not be acquired in time
+     */
+    public void latchPage(PageId pid, Permissions perm) throws TransactionAbortedException {
+    	ReentrantReadWriteLock latch = this.latchOf(pid);
+    	try {
+    		Lock l = perm == Permissions.READ_ONLY ? latch.readLock() : latch.writeLock();
+    		if (!(l.tryLock(LATCH_TIMEOUT, TimeUnit.MILLISECONDS))) {
+    			throw new TransactionAbortedException();
+    		}
+    	} catch (InterruptedException e) {
+    		throw new TransactionAbortedException();
+    	}
+    }
+
+    /** Release a latch taken with latchPage, with the same permissions. */
+    public void unlatchPage(PageId pid, Permissions perm) {
+    	ReentrantReadWriteLock latch = this.latchOf(pid);
+    	if (perm == Permissions.READ_ONLY) {
+    		latch.readLock().unlock();
+    	} else {
+    		latch.writeLock().unlock();
+    	}
+    }
+
+    /** Returns the latch of a page. */
+    private ReentrantReadWriteLock latchOf(PageId pid) {
+    	// page ids of one table hash to nearby values, so mix the bits
+    	int h = pid.hashCode() * 0x9E3779B9;
+    	return this.latches[(h >>> 16) % LATCH_STRIPES];
+    }
+
+    /**
+     * Returns a page without locking it, for a caller that holds its
+     * latch.  Snapshot and optimistic transactions get their usual view.
+     */
+    public Page getLatchedPage(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (this.snapshots.containsKey(tid) || this.workspaces.containsKey(tid)) {
+        	return this.getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Make tid a read-only snapshot transaction.  Its getPage calls take
+     * no locks and return, as private copies, the pages as committed when
+     * this method was called.  The snapshot ends with transactionComplete.
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	synchronized (this.versionLock) {
+    		this.snapshots.put(tid, this.commitClock.get());
+    		this.startVersionCollector();
+    	}
+    }
+
+    /** Start the version collector unless it runs already.  Caller holds versionLock. */
+    private void startVersionCollector() {
+    	if (this.versionCollector == null) {
+    		this.versionCollector = new Timer("simpledb-version-gc", true);
+    		this.versionCollector.schedule(new TimerTask() {
+    			public void run() {
+    				collectVersions();
+    			}
+    		}, VERSION_GC_INTERVAL, VERSION_GC_INTERVAL);
+    	}
+    }
+
+    /**
+     * Make tid an optimistic transaction.  Its getPage calls take no
+     * locks: reads return copies of the committed pages, and pages asked
+     * for with READ_WRITE are private copies that insertTuple and
+     * deleteTuple modify.  validateOptimistic must succeed before tid
+     * commits.
+     */
+    public void beginOptimistic(TransactionId tid) {
+    	synchronized (this.versionLock) {
+    		this.workspaces.put(tid, new Workspace(this.commitClock.get()));
+    		this.startVersionCollector();
+    	}
+    }
+
+    private Page getWorkspacePage(Workspace ws, PageId pid, Permissions perm) throws DbException {
+    	synchronized (ws) {
+    		Page p = ws.writes.get(pid);
+    		if (p != null) {
+    			return p;
+    		}
+    		synchronized (this.versionLock) {
+    			p = this.getCommittedPage(pid, perm == Permissions.READ_ONLY);
+    		}
+    		ws.reads.add(pid);
+    		if (perm == Permissions.READ_WRITE) {
+    			ws.writes.put(pid, p);
+    		}
+    		return p;
+    	}
+    }
+
+    /**
+     * Validate optimistic transaction tid and install its writes.  Takes
+     * X locks on the write set, then, under the commit lock, checks that
+     * no page tid read was committed since tid began or is about to be
+     * written by another validated transaction.  On success the private
+     * copies replace the pool's pages as dirty pages of tid, and tid
+     * commits like a locking transaction.
+     *
+     * @throws TransactionAbortedException if validation fails; tid must then abort
+     */
+    public void validateOptimistic(TransactionId tid)
+        throws TransactionAbortedException, DbException {
+    	Workspace ws = this.workspaces.get(tid);
+    	if (ws == null) {
+    		return;
+    	}
+
+    	ArrayList<PageId> writes;
+    	synchronized (ws) {
+    		writes = new ArrayList<PageId>(ws.writes.keySet());
+    	}
+    	Collections.sort(writes, PAGE_ORDER);
+    	for (PageId pid : writes) {
+    		this.LM.getLock(tid, pid, Permissions.READ_WRITE);
+    	}
+
+    	synchronized (this.versionLock) {
+    		for (PageId pid : ws.reads) {
+    			Long ts = this.pageWriteTs.get(pid);
+    			if (ts != null && ts > ws.startTs) {
+    				throw new TransactionAbortedException();
+    			}
+    			for (Set<PageId> other : this.validatedWrites.values()) {
+    				if (other.contains(pid)) {
+    					throw new TransactionAbortedException();
+    				}
+    			}
+    		}
+    		this.validatedWrites.put(tid, new HashSet<PageId>(writes));
+    	}
+
+    	for (PageId pid : writes) {
+    		Page p = ws.writes.get(pid);
+    		if (p.isDirty() == null) {
+    			continue; // asked for READ_WRITE but never changed
+    		}
+    		this.fetchPage(tid, pid);
+    		this.markDirty(p, tid);
+    	}
+    	this.workspaces.remove(tid);
+    }
+
+    /** @return true if tid is an open snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+    	return this.snapshots.containsKey(tid);
+    }
+
+    /** Returns the image of pid that was committed at commit timestamp ts. */
+    private Page getSnapshotPage(PageId pid, long ts) throws DbException {
+    	synchronized (this.versionLock) {
+    		Long current = this.pageCommitTs.get(pid);
+    		if (current == null || current <= ts) {
+    			return this.getCommittedPage(pid, true);
+    		}
+
+    		LinkedList<PageVersion> chain = this.versions.get(pid);
+    		if (chain != null) {
+    			for (PageVersion v : chain) {
+    				if (v.from <= ts && ts < v.to) {
+    					return v.page;
+    				}
+    			}
+    		}
+    		if (pid instanceof HeapPageId) {
+    			// appended to the file after the snapshot began
+    			try {
+    				return new HeapPage((HeapPageId)pid, HeapPage.createEmptyPageData());
+    			} catch (IOException e) {
+    				throw new DbException("could not create empty page " + pid);
+    			}
+    		}
+    		throw new DbException("no version of page " + pid + " at timestamp " + ts);
+    	}
+    }
+
+    /**
+     * Returns a copy of the latest committed image of pid.  If shared is
+     * true the copy may be handed to other readers too, and must not be
+     * modified; otherwise it is private.  Caller holds versionLock, so no
+     * commit installs a new image meanwhile.
+     */
+    private Page getCommittedPage(PageId pid, boolean shared) {
+    	if (shared) {
+    		Page copy = this.committedCopies.get(pid);
+    		if (copy != null) {
+    			return copy;
+    		}
+    	}
+
+    	Page p = this.cache.get(pid);
+    	if (p == null) {
+    		p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    		if (!(this.committing.contains(pid))) {
+    			return p;
+    		}
+    		// written by a commit in progress while we read it; the
+    		// committed image is the pinned page's before image
+    		p = this.cache.get(pid);
+    	}
+    	Page copy = p.getBeforeImage();
+    	if (shared) {
+    		this.committedCopies.put(pid, copy);
+    	}
+    	return copy;
+    }
+
+    /**
+     * Make the images just written by a commit visible under a new commit
+     * timestamp, keeping the images they replace if a snapshot is open.
+     */
+    private void installVersions(Set<PageId> pids) {
+    	synchronized (this.versionLock) {
+    		long ts = this.commitClock.incrementAndGet();
+    		boolean keep = !(this.snapshots.isEmpty());
+    		boolean track = !(this.workspaces.isEmpty());
+    		for (PageId pid : pids) {
+    			if (track) {
+    				this.pageWriteTs.put(pid, ts);
+    			}
+    			Page p = this.cache.get(pid);
+    			if (p == null) {
+    				this.committing.remove(pid);
+    				continue;
+    			}
+    			Page old = this.committedCopies.remove(pid);
+    			if (keep) {
+    				Long from = this.pageCommitTs.get(pid);
+    				LinkedList<PageVersion> chain = this.versions.get(pid);
+    				if (chain == null) {
+    					chain = new LinkedList<PageVersion>();
+    					this.versions.put(pid, chain);
+    				}
+    				chain.addFirst(new PageVersion(from == null ? 0 : from, ts,
+    						old != null ? old : p.getBeforeImage()));
+    				this.pageCommitTs.put(pid, ts);
+    			} else {
+    				// every later snapshot will read at ts or after
+    				this.pageCommitTs.remove(pid);
+    			}
+    			p.setBeforeImage();
+    			this.committing.remove(pid);
+    		}
+    	}
+    }
+
+    /**
+     * Drop the versions no open snapshot can read, i.e. those replaced
+     * before the oldest snapshot began.  Runs on the version collector.
+     */
+    void collectVersions() {
+    	synchronized (this.versionLock) {
+    		long oldest = this.commitClock.get();
+    		for (Long ts : this.snapshots.values()) {
+    			oldest = Math.min(oldest, ts);
+    		}
+    		long oldestStart = this.commitClock.get();
+    		for (Workspace ws : this.workspaces.values()) {
+    			oldestStart = Math.min(oldestStart, ws.startTs);
+    		}
+    		Iterator<Long> written = this.pageWriteTs.values().iterator();
+    		while (written.hasNext()) {
+    			if (written.next() <= oldestStart) {
+    				written.remove();
+    			}
+    		}
+
+    		Iterator<Map.Entry<PageId, LinkedList<PageVersion>>> it = this.versions.entrySet().iterator();
+    		while (it.hasNext()) {
+    			LinkedList<PageVersion> chain = it.next().getValue();
+    			while (!(chain.isEmpty()) && chain.getLast().to <= oldest) {
+    				chain.removeLast();
+    			}
+    			if (chain.isEmpty()) {
+    				it.remove();
+    			}
+    		}
+
+    		Iterator<Long> ts = this.pageCommitTs.values().iterator();
+    		while (ts.hasNext()) {
+    			if (ts.next() <= oldest) {
+    				ts.remove();
+    			}
+    		}
+    	}
+    }
+
+    /** @return the number of old page versions currently kept for snapshots */
+    public int getVersionCount() {
+    	synchronized (this.versionLock) {
+    		int n = 0;
+    		for (LinkedList<PageVersion> chain : this.versions.values()) {
+    			n += chain.size();
+    		}
+    		return n;
+    	}
+    }
+
+    /**
+     * Lock a whole table on behalf of tid, S for READ_ONLY and X for
+     * READ_WRITE.  Later getPage calls on the table then take no page
+     * locks.  Useful for scans that touch most of a table.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        this.LM.getTableLock(tid, tableId, perm);
+    }
+
+    /**
+     * Returns the cached copy of a page, reading it into the pool if needed.
+     * Callers must already hold a lock on the page for tid.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid) throws DbException {
+        Page p = this.cache.get(pid);
+        if (p == null) {
+        	this.makeRoom(pid.getTableId());
+        	p = this.secondTier.get(pid);
+        	ShadowHeapFile shadow = shadowFile(pid);
+        	if (p == null && shadow != null) {
+        		// tid's own uncommitted write, if it stole one, with the
+        		// committed version as before image
+        		p = shadow.readPage(pid, tid);
+        	} else {
+        		if (p == null) {
+        			p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        		}
+        		p.setBeforeImage();
+        	}
+        	Page cached = this.cache.putIfAbsent(pid, p);
+        	if (cached != null) {
+        		p = cached; // another reader loaded it first
+        	}
+        }
+
+        this.lastAccess.put(pid, this.clock.incrementAndGet());
+        return p;
     }
 
     /**
@@ -100,6 +749,17 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
+        Workspace ws = this.workspaces.get(tid);
+        if (ws != null) {
+        	// an unchanged copy leaves the write set, but stays read
+        	synchronized (ws) {
+        		Page p = ws.writes.get(pid);
+        		if (p != null && p.isDirty() == null) {
+        			ws.writes.remove(pid);
+        		}
+        	}
+        	return;
+        }
         this.LM.releaseLock(tid, pid);
     }
 
@@ -130,33 +790,35 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	if (this.LM.getPages(tid) == null) {
-    		return;
+    	this.snapshots.remove(tid);
+    	this.workspaces.remove(tid);
+    	Set<PageId> dirtied = this.dirtiedBy.remove(tid);
+    	if (dirtied != null) {
+    		for (PageId pid : dirtied) {
+    			Page p = this.cache.get(pid);
+    			if (p == null) {
+    				continue;
+    			}
+    			if (commit) {
+    				if (!(this.unflushed.contains(pid))) {
+    					this.flushPage(pid);
+    				}
+    			} else if (p.isDirty() != null && p.isDirty().equals(tid)) {
+    				this.cache.put(pid, p.getBeforeImage());
+    				if (!(this.unflushed.contains(pid))) {
+    					this.dirtyPageTable.remove(pid);
+    				}
+    				this.committing.remove(pid);
+    			}
+    		}
+    		this.finishShadowPages(tid, dirtied, commit);
+    		if (commit) {
+    			this.installVersions(dirtied);
+    		}
+    	}
+    	synchronized (this.versionLock) {
+    		this.validatedWrites.remove(tid);
     	}
-
-        if (commit) {
-            Iterator<PageId> itor = this.LM.getPages(tid);
-            while (itor.hasNext()) {
-            	PageId pid = itor.next();
-            	Page p = this.cache.get(pid);
-            	if (p != null) {
-                	this.flushPage(pid);
-                	this.cache.get(pid).setBeforeImage();
-            	}
-            }
-        } else {
-        	Iterator<PageId> itor = this.LM.getPages(tid);
-        	while (itor.hasNext()) {
-        		PageId pid = itor.next();
-        		if (this.cache.containsKey(pid)) {
-	        		Page p = this.cache.get(pid);
-	        		if (p.isDirty() != null &&
-	        			p.isDirty().equals(tid)) {
-	        			this.cache.put(pid, p.getBeforeImage());
-	        		}
-        		}
-        	}
-        }
 
         this.LM.releaseAllLocks(tid);
     }
@@ -184,8 +846,7 @@ public class BufferPool {
     	Iterator<Page> itor = changed.iterator();
     	while (itor.hasNext()) {
     		Page p = itor.next();
-    		p.markDirty(true, tid);
-    		this.cache.put(p.getId(), p);
+    		this.markChanged(p, tid);
     	}
     }
 
@@ -210,8 +871,7 @@ public class BufferPool {
     	Iterator<Page> itor = changed.iterator();
     	while (itor.hasNext()) {
     		Page p = itor.next();
-    		p.markDirty(true, tid);
-    		this.cache.put(p.getId(), p);
+    		this.markChanged(p, tid);
     	}
     }
 
@@ -241,6 +901,111 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         this.cache.remove(pid);
+        this.lastAccess.remove(pid);
+        this.dirtyPageTable.remove(pid);
+        this.secondTier.remove(pid);
+        this.committedCopies.remove(pid);
+        this.committing.remove(pid);
+        this.unflushed.remove(pid);
+    }
+
+    /**
+     * Records a page changed by insertTuple or deleteTuple: in tid's
+     * workspace if tid is optimistic, otherwise in the pool.
+     */
+    private void markChanged(Page p, TransactionId tid) {
+    	Workspace ws = this.workspaces.get(tid);
+    	if (ws == null) {
+    		this.markDirty(p, tid);
+    		return;
+    	}
+    	synchronized (ws) {
+    		p.markDirty(true, tid);
+    		ws.writes.put(p.getId(), p);
+    	}
+    }
+
+    /**
+     * Replaces the copy of a page that tid sees, for an access method that
+     * undoes its changes to the page by rebuilding it.  The changed copy may
+     * have been evicted, since it need not be marked dirty yet, so p is put
+     * back into the pool in its place.
+     */
+    synchronized void replacePage(TransactionId tid, Page p) {
+    	Workspace ws = this.workspaces.get(tid);
+    	if (ws != null) {
+    		synchronized (ws) {
+    			if (ws.writes.containsKey(p.getId())) {
+    				ws.writes.put(p.getId(), p);
+    			}
+    		}
+    		return;
+    	}
+    	this.secondTier.remove(p.getId());
+    	this.cache.put(p.getId(), p);
+    	this.lastAccess.put(p.getId(), this.clock.incrementAndGet());
+    }
+
+    /**
+     * Records pages an access method changed for tid before it failed
+     * partway through an insert or delete, so that aborting tid restores
+     * them.
+     */
+    void markChanged(TransactionId tid, Collection<Page> pages) {
+    	for (Page p : pages) {
+    		this.markChanged(p, tid);
+    	}
+    }
+
+    /**
+     * Marks a page dirty on behalf of tid, caches it, and records it in the
+     * dirty page table with the current end of the log as its recovery LSN
+     * if it was not already dirty.
+     */
+    private void markDirty(Page p, TransactionId tid) {
+    	p.markDirty(true, tid);
+    	this.cache.put(p.getId(), p);
+    	// shadow paged tables are never redone from the log
+    	if (!(this.dirtyPageTable.containsKey(p.getId())) && shadowFile(p.getId()) == null) {
+    		this.dirtyPageTable.putIfAbsent(p.getId(), Database.getLogFile().getCurrentOffset());
+    	}
+
+    	Set<PageId> dirtied = this.dirtiedBy.get(tid);
+    	if (dirtied == null) {
+    		this.dirtiedBy.putIfAbsent(tid, ConcurrentHashMap.<PageId>newKeySet());
+    		dirtied = this.dirtiedBy.get(tid);
+    	}
+    	dirtied.add(p.getId());
+    }
+
+    /**
+     * Returns a snapshot of the dirty page table, mapping each dirty page
+     * to the log offset at which it was first dirtied.  Used by fuzzy
+     * checkpoints, which record this table instead of flushing the pool.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+    	return new HashMap<PageId, Long>(this.dirtyPageTable);
+    }
+
+    /**
+     * Background writer entry point, called after a fuzzy checkpoint.
+     * Flushes the given pages if they are still dirty and the transaction
+     * that dirtied them has completed; pages of running transactions
+     * are skipped to preserve NO STEAL.
+     *
+     * @param pids the pages recorded in the checkpoint's dirty page table
+     */
+    public void flushCheckpointedPages(Collection<PageId> pids) throws IOException {
+    	for (PageId pid : pids) {
+    		synchronized (this) {
+    			Page p = this.cache.get(pid);
+    			if (p == null || (p.isDirty() == null && !(this.unflushed.contains(pid))) ||
+    					(p.isDirty() != null && this.dirtiedBy.containsKey(p.isDirty()))) {
+    				continue;
+    			}
+    			this.flushPage(pid);
+    		}
+    	}
     }
 
     /**
@@ -250,17 +1015,58 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	if (this.logFlush(pid) || this.unflushed.contains(pid)) {
+    		Database.getLogFile().force();
+    	}
+    	this.writeFlushed(pid);
+    }
+
+    /**
+     * Writes the last committed image of pid if it holds updates of an
+     * asynchronous commit that are not written yet, forcing the log first.
+     * Called by the log before it rolls back updates on the page on disk.
+     */
+    synchronized void flushCommitted(PageId pid) throws IOException {
     	Page p = this.cache.get(pid);
-    	if (p != null) {
-	    	TransactionId tid = p.isDirty();
-	    	if (tid != null) {
-	    		Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
-	    	    Database.getLogFile().force();
-	    	}
+    	if (p == null || !(this.unflushed.contains(pid))) {
+    		return;
+    	}
+    	Database.getLogFile().force();
+    	Page img = p.isDirty() != null ? p.getBeforeImage() : p;
+    	Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(img);
+    	this.unflushed.remove(pid);
+    }
 
-    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(this.cache.get(pid));
+    /**
+     * Logs the update of a dirty page about to be flushed.  The log must be
+     * forced before the page is written.
+     * @return true if an update was logged
+     */
+    private boolean logFlush(PageId pid) throws IOException {
+    	Page p = this.cache.get(pid);
+    	if (p == null || p.isDirty() == null) {
+    		return false;
+    	}
+    	// pinned until its commit makes the new image visible to snapshots
+    	this.committing.add(pid);
+    	if (shadowFile(pid) != null) {
+    		return false; // its commit swaps the table's root instead
+    	}
+    	Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p);
+    	return true;
+    }
 
-        	p.markDirty(false, tid);
+    /** Writes a page whose update was logged by logFlush and forced. */
+    private void writeFlushed(PageId pid) throws IOException {
+    	Page p = this.cache.get(pid);
+    	if (p != null && p.isDirty() == null && shadowFile(pid) != null) {
+    		return; // a clean shadow paged page is the committed one
+    	}
+    	if (p != null) {
+    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        	p.markDirty(false, p.isDirty());
+        	this.dirtyPageTable.remove(pid);
+        	this.unflushed.remove(pid);
     	}
     }
 
@@ -269,28 +1075,355 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Iterator<PageId> itor = this.LM.getPages(tid);
-        while (itor.hasNext()) {
-        	this.flushPage(itor.next());
+        Set<PageId> dirtied = this.dirtiedBy.get(tid);
+        if (dirtied == null) {
+        	return;
+        }
+        // log every page first, so that one force covers them all
+        boolean logged = false;
+        for (PageId pid : dirtied) {
+        	logged |= this.logFlush(pid);
+        }
+        if (logged) {
+        	Database.getLogFile().force();
         }
+        for (PageId pid : dirtied) {
+        	this.writeFlushed(pid);
+        }
+        this.finishShadowPages(tid, dirtied, true);
+    }
+
+    /**
+     * Logs the updates of tid's dirty pages without writing the pages, for
+     * a commit that does not wait for its log records to reach disk.  The
+     * pages stay in the dirty page table, so recovery can redo them, and
+     * are written later with the log forced first.  Pages of shadow paged
+     * tables are not logged, so they are written and committed at once.
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+        Set<PageId> dirtied = this.dirtiedBy.get(tid);
+        if (dirtied == null) {
+        	return;
+        }
+        for (PageId pid : dirtied) {
+        	if (this.logFlush(pid)) {
+        		this.cache.get(pid).markDirty(false, tid);
+        		this.unflushed.add(pid);
+        	} else if (shadowFile(pid) != null) {
+        		this.writeFlushed(pid);
+        	}
+        }
+        this.finishShadowPages(tid, dirtied, true);
+    }
+
+    /** @return the file of pid's table if it is shadow paged, else null */
+    private static ShadowHeapFile shadowFile(PageId pid) {
+    	DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	return f instanceof ShadowHeapFile ? (ShadowHeapFile)f : null;
+    }
+
+    /**
+     * Commits or drops the pages written for tid in the shadow paged tables
+     * among the pages it dirtied.  Their pages must all be written before
+     * a commit.  On abort the pages are discarded, as a page written by
+     * flushAllPages before the abort is no longer marked dirty.
+     */
+    private void finishShadowPages(TransactionId tid, Set<PageId> dirtied, boolean commit)
+    		throws IOException {
+    	HashSet<ShadowHeapFile> files = new HashSet<ShadowHeapFile>();
+    	for (PageId pid : dirtied) {
+    		ShadowHeapFile f = shadowFile(pid);
+    		if (f != null) {
+    			files.add(f);
+    			if (!commit) {
+    				this.discardPage(pid);
+    			}
+    		}
+    	}
+    	for (ShadowHeapFile f : files) {
+    		if (commit) {
+    			f.commit(tid);
+    		} else {
+    			f.abort(tid);
+    		}
+    	}
+    }
+
+    /**
+     * Writes the ids of the resident pages to f, hottest (most recently
+     * used) first, so that a restarted pool can preload them.
+     */
+    public void saveResidentPages(File f) throws IOException {
+    	List<Map.Entry<PageId, Long>> pages =
+    			new ArrayList<Map.Entry<PageId, Long>>(this.lastAccess.entrySet());
+    	Collections.sort(pages, new Comparator<Map.Entry<PageId, Long>>() {
+    		public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+    			return b.getValue().compareTo(a.getValue());
+    		}
+    	});
+
+    	// write to a temporary file so a crash never leaves a torn list behind
+    	File tmp = new File(f.getPath() + ".tmp");
+    	DataOutputStream out = new DataOutputStream(
+    			new BufferedOutputStream(new FileOutputStream(tmp)));
+    	try {
+    		out.writeInt(RESIDENT_PAGES_MAGIC);
+    		out.writeInt(RESIDENT_PAGES_VERSION);
+    		out.writeInt(pages.size());
+    		for (Map.Entry<PageId, Long> e : pages) {
+    			PageType.writePageId(out, e.getKey());
+    		}
+    	} finally {
+    		out.close();
+    	}
+    	if (!(tmp.renameTo(f))) {
+    		f.delete();
+    		tmp.renameTo(f);
+    	}
+    }
+
+    /**
+     * Starts writing the resident page ids to f every periodMillis
+     * milliseconds on a background thread.
+     */
+    public synchronized void startHotPageDumper(final File f, long periodMillis) {
+    	this.stopHotPageDumper();
+    	this.hotPageDumper = new Timer("simpledb-hotpages", true);
+    	this.hotPageDumper.schedule(new TimerTask() {
+    		public void run() {
+    			try {
+    				saveResidentPages(f);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}, periodMillis, periodMillis);
+    }
+
+    /** Stops the hot page dumper, if one is running. */
+    public synchronized void stopHotPageDumper() {
+    	if (this.hotPageDumper != null) {
+    		this.hotPageDumper.cancel();
+    		this.hotPageDumper = null;
+    	}
+    }
+
+    /**
+     * Starts a background thread that reads the pages listed in f (as
+     * written by saveResidentPages) back into the pool.  The hottest pages
+     * that fit in the free frames are loaded in file order, using one
+     * sequential read per run of consecutive heap file pages.  Nothing is
+     * evicted to make room, and pages already cached are left alone.
+     * Should be called after the catalog has been loaded.
+     *
+     * @return the loader thread, or null if f does not exist
+     */
+    public Thread startPreload(final File f) {
+    	if (!(f.exists())) {
+    		return null;
+    	}
+    	Thread loader = new Thread("simpledb-preload") {
+    		public void run() {
+    			try {
+    				preloadPages(f);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	};
+    	loader.setDaemon(true);
+    	loader.start();
+    	return loader;
+    }
+
+    /**
+     * Reads the pages listed in f into the pool; see startPreload.  A list
+     * written in another format, such as by an older version, is ignored.
+     */
+    public void preloadPages(File f) throws IOException {
+    	ArrayList<PageId> pids = new ArrayList<PageId>();
+    	DataInputStream in = new DataInputStream(
+    			new BufferedInputStream(new FileInputStream(f)));
+    	try {
+    		if (f.length() < 12 || in.readInt() != RESIDENT_PAGES_MAGIC ||
+    				in.readInt() != RESIDENT_PAGES_VERSION) {
+    			return;
+    		}
+    		int count = in.readInt();
+    		int free = this.numPages - this.cache.size();
+    		for (int i = 0; i < count && pids.size() < free; i++) {
+    			PageId pid = PageType.readPageId(in);
+    			try {
+    				Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			} catch (NoSuchElementException e) {
+    				continue; // table is no longer in the catalog
+    			}
+    			pids.add(pid);
+    		}
+    	} finally {
+    		in.close();
+    	}
+
+    	// read in file order so runs of pages become sequential reads
+    	Collections.sort(pids, new Comparator<PageId>() {
+    		public int compare(PageId a, PageId b) {
+    			if (a.getTableId() != b.getTableId()) {
+    				return a.getTableId() < b.getTableId() ? -1 : 1;
+    			}
+    			return a.pageNumber() - b.pageNumber();
+    		}
+    	});
+
+    	int i = 0;
+    	while (i < pids.size()) {
+    		PageId first = pids.get(i);
+    		int run = 1;
+    		while (first instanceof HeapPageId && i + run < pids.size() && run < PRELOAD_RUN &&
+    				pids.get(i + run).getTableId() == first.getTableId() &&
+    				pids.get(i + run).pageNumber() == first.pageNumber() + run) {
+    			run++;
+    		}
+    		this.preloadRun(pids.subList(i, i + run));
+    		i += run;
+    	}
+    }
+
+    /**
+     * Reads a run of consecutive pages and adds those that are not yet
+     * cached, as long as there are free frames.  Holds the pool's monitor
+     * across the read so no flush of the same pages can interleave.
+     */
+    private synchronized void preloadRun(List<PageId> run) {
+    	if (this.cache.size() + run.size() > this.numPages) {
+    		return;
+    	}
+    	PageId first = run.get(0);
+    	DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+    	List<Page> pages = new ArrayList<Page>();
+    	try {
+    		if (file instanceof HeapFile) {
+    			pages = ((HeapFile)file).readPages(first.pageNumber(), run.size());
+    		} else {
+    			pages.add(file.readPage(first));
+    		}
+    	} catch (IOException e) {
+    		return;
+    	} catch (IllegalArgumentException e) {
+    		return; // the page no longer exists
+    	}
+
+    	for (Page p : pages) {
+    		if (this.cache.putIfAbsent(p.getId(), p) == null) {
+    			this.lastAccess.put(p.getId(), this.clock.incrementAndGet());
+    			this.secondTier.remove(p.getId());
+    		}
+    	}
+    }
+
+    /**
+     * Evicts pages until a page of the given table can be brought in
+     * without exceeding the pool size or the table's maximum quota.
+     */
+    private synchronized void makeRoom(int tableId) throws DbException {
+    	TableQuota quota = this.quotas.get(tableId);
+    	if (quota != null && quota.maxPages > 0 &&
+    			this.countPages(tableId) >= quota.maxPages) {
+    		this.evictPage(tableId);
+    	}
+    	while (this.cache.size() >= this.numPages) {
+    		this.evictPage(null);
+    	}
+    }
+
+    private int countPages(int tableId) {
+    	int count = 0;
+    	for (PageId pid : this.cache.keySet()) {
+    		if (pid.getTableId() == tableId) count++;
+    	}
+    	return count;
+    }
+
+    /**
+     * Picks the least recently used clean page, restricted to one table if
+     * tableId is given.  Pages of tables at or below their minimum quota are
+     * passed over unless no other page can be evicted.
+     *
+     * @return the page to evict, or null if every candidate is dirty
+     */
+    private PageId chooseVictim(Integer tableId) {
+    	HashMap<Integer, Integer> resident = new HashMap<Integer, Integer>();
+    	if (tableId == null && !(this.quotas.isEmpty())) {
+    		for (PageId pid : this.cache.keySet()) {
+    			Integer n = resident.get(pid.getTableId());
+    			resident.put(pid.getTableId(), n == null ? 1 : n + 1);
+    		}
+    	}
+
+    	PageId victim = null, reserved = null;
+    	long victimTick = Long.MAX_VALUE, reservedTick = Long.MAX_VALUE;
+    	for (Map.Entry<PageId, Page> e : this.cache.entrySet()) {
+    		PageId pid = e.getKey();
+    		if (e.getValue().isDirty() != null || this.committing.contains(pid) ||
+    				(tableId != null && pid.getTableId() != tableId)) {
+    			continue;
+    		}
+    		Long t = this.lastAccess.get(pid);
+    		long tick = t == null ? 0 : t;
+    		TableQuota quota = this.quotas.get(pid.getTableId());
+    		if (tableId == null && quota != null &&
+    				resident.get(pid.getTableId()) <= quota.minPages) {
+    			if (tick < reservedTick) {
+    				reserved = pid;
+    				reservedTick = tick;
+    			}
+    		} else if (tick < victimTick) {
+    			victim = pid;
+    			victimTick = tick;
+    		}
+    	}
+    	return victim != null ? victim : reserved;
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Only evicts dirty pages as part of the NO STEAL/FORCE policy.
+     * Only evicts clean pages as part of the NO STEAL/FORCE policy.
+     *
+     * @param tableId if not null, only pages of this table are considered
      */
-    private synchronized void evictPage() throws DbException {
-    	PageId evictPid = this.usedID;
-    	Iterator<PageId> itor = this.cache.keySet().iterator();
-		while (itor.hasNext() && (this.cache.get(evictPid).isDirty() != null)) {
-			evictPid = itor.next();
-		}
-		
-		if (this.cache.get(evictPid).isDirty() != null) {
+    private synchronized void evictPage(Integer tableId) throws DbException {
+    	PageId evictPid = this.chooseVictim(tableId);
+		if (evictPid == null) {
 			throw new DbException("Cannot evict a page because all pages are dirty.");
 		}
+		try {
+			this.removeVictim(evictPid);
+		} catch (IOException e) {
+			throw new DbException("could not write page " + evictPid + ": " + e.getMessage());
+		}
+    }
+
+    /**
+     * Removes a victim chosen by chooseVictim from the pool.  A page holding
+     * an asynchronous commit that is not written yet is written first, as
+     * discarding it would drop it from the dirty page table and a later
+     * checkpoint could truncate the only durable copy of the commit.
+     */
+    private synchronized void removeVictim(PageId pid) throws IOException {
+    	if (this.unflushed.contains(pid)) {
+    		this.flushPage(pid);
+    	}
+    	this.demotePage(pid);
+    }
 
-        this.discardPage(evictPid);
+    /** Moves a clean page from the pool into the compressed second tier. */
+    private synchronized void demotePage(PageId pid) {
+    	Page p = this.cache.get(pid);
+    	this.discardPage(pid);
+    	ShadowHeapFile shadow = shadowFile(pid);
+    	if (p != null && (shadow == null || !(shadow.isPending(pid)))) {
+    		// uncommitted shadow pages are read back from their file by their writer
+    		this.secondTier.put(p);
+    	}
     }
 
 }
\ No newline at end of file
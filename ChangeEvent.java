@@ -0,0 +1,85 @@
+package simpledb;
+
+/**
+ * A row level change decoded from the write ahead log by a ChangeFeed: a
+ * tuple inserted into, deleted from or overwritten in a heap file slot by a
+ * committed transaction.
+ */
+public class ChangeEvent {
+
+    public enum Kind {
+        /** A tuple was stored in an empty slot */
+        INSERT,
+        /** The tuple in a slot was removed */
+        DELETE,
+        /** The tuple in a slot was replaced by another */
+        UPDATE
+    }
+
+    private final Kind kind;
+    private final int tableId;
+    private final RecordId rid;
+    private final Tuple oldTuple;
+    private final Tuple newTuple;
+    private final long tid;
+    private final long commitLsn;
+    private final long restartLsn;
+
+    ChangeEvent(Kind kind, int tableId, RecordId rid, Tuple oldTuple, Tuple newTuple,
+                long tid, long commitLsn, long restartLsn) {
+        this.kind = kind;
+        this.tableId = tableId;
+        this.rid = rid;
+        this.oldTuple = oldTuple;
+        this.newTuple = newTuple;
+        this.tid = tid;
+        this.commitLsn = commitLsn;
+        this.restartLsn = restartLsn;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the slot that changed */
+    public RecordId getRecordId() {
+        return rid;
+    }
+
+    /** @return the tuple before the change, or null for an INSERT */
+    public Tuple getOldTuple() {
+        return oldTuple;
+    }
+
+    /** @return the tuple after the change, or null for a DELETE */
+    public Tuple getNewTuple() {
+        return newTuple;
+    }
+
+    /** @return the id of the transaction that made the change */
+    public long getTransactionId() {
+        return tid;
+    }
+
+    /** @return the LSN of the COMMIT record of the transaction that made
+        the change; see ChangeFeed for resuming after it */
+    public long getCommitLsn() {
+        return commitLsn;
+    }
+
+    /** @return the LSN a ChangeFeed resuming after this event's
+        transaction starts reading at */
+    public long getRestartLsn() {
+        return restartLsn;
+    }
+
+    public String toString() {
+        return kind + " " + tableId + " " + rid.getPageId().pageNumber() + ":" + rid.tupleno()
+            + (oldTuple == null ? "" : " old=" + oldTuple)
+            + (newTuple == null ? "" : " new=" + newTuple);
+    }
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ChangeFeed streams the row level changes made by committed transactions,
+ * decoded from the UPDATE records of a write ahead log, so that caches,
+ * search indexes and the like can follow a database instead of rescanning
+ * its tables.  It reads the log's segment files, in the database's process
+ * or in another one with the same catalog, and never writes to them.
+ * <p>
+ * Changes are delivered a whole transaction at a time, in commit order;
+ * the changes of aborted transactions are never delivered.  To resume a
+ * feed after the last event processed, save that event's getRestartLsn()
+ * and getCommitLsn() and create the new feed with them: it delivers
+ * exactly the transactions that committed after it.  The log must not be
+ * truncated past the restart LSN in between, so a consumer that stops for
+ * long should start over from a fresh copy of the tables.
+ * <p>
+ * Only heap file slots are decoded.  The deltas of other pages, such as
+ * B+ tree pages, are byte ranges that do not hold whole tuples and are
+ * skipped, as are the changes of tables missing from the catalog.
+ * <p>
+ * Not thread safe.
+ */
+public class ChangeFeed {
+
+    /** Time between two reads of the log while poll(timeout) waits */
+    static final long POLL_MILLIS = 10;
+
+    /** Records read at a time, and events past which poll returns early */
+    static final int BATCH_RECORDS = 1024;
+
+    private final LogFollower log;
+    private final List<ChangeEvent> ready = new ArrayList<ChangeEvent>();
+    private final LogFollower.Sink sink = new LogFollower.Sink() {
+        public void commit(long tid, long commitLsn, long restartLsn, List<PageDelta> deltas)
+            throws IOException {
+            decode(tid, commitLsn, restartLsn, deltas);
+        }
+    };
+
+    /**
+     * Create a feed of every transaction that commits after a LSN.
+     *
+     * @param logFile the log's file name, as given to its LogFile
+     * @param fromLsn the LSN to start reading at; transactions with
+     *   updates before it are missed
+     */
+    public ChangeFeed(File logFile, long fromLsn) {
+        this(logFile, LogSegments.DEFAULT_SEGMENT_SIZE, fromLsn, -1);
+    }
+
+    /**
+     * @param logFile the log's file name, as given to its LogFile
+     * @param segmentSize the size of the log's segments
+     * @param fromLsn the LSN to start reading at, such as the restart LSN
+     *   of the last event processed
+     * @param afterCommitLsn the commit LSN of the last event processed;
+     *   transactions that committed at or before it are not delivered, -1
+     *   to deliver them all
+     */
+    public ChangeFeed(File logFile, long segmentSize, long fromLsn, long afterCommitLsn) {
+        this.log = new LogFollower(logFile, segmentSize, fromLsn, afterCommitLsn);
+    }
+
+    /**
+     * Return the changes of the transactions whose COMMIT record was
+     * written to the log since the last call, without waiting.
+     *
+     * @return the changes, in commit order, possibly none
+     * @throws IOException if the log cannot be read or was truncated past
+     *   the feed's position
+     */
+    public List<ChangeEvent> poll() throws IOException {
+        try {
+            boolean atEnd = false;
+            while (!atEnd && ready.size() < BATCH_RECORDS) {
+                atEnd = log.readAvailable(sink, BATCH_RECORDS);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted reading the log");
+        }
+        List<ChangeEvent> events = new ArrayList<ChangeEvent>(ready);
+        ready.clear();
+        return events;
+    }
+
+    /**
+     * Return the changes of the transactions committed since the last
+     * call, waiting up to timeoutMillis for some.
+     *
+     * @return the changes, in commit order, possibly none
+     */
+    public List<ChangeEvent> poll(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<ChangeEvent> events = poll();
+            long left = deadline - System.currentTimeMillis();
+            if (!events.isEmpty() || left <= 0) {
+                return events;
+            }
+            Thread.sleep(Math.min(left, POLL_MILLIS));
+        }
+    }
+
+    /** Stop reading the log. */
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void decode(long tid, long commitLsn, long restartLsn, List<PageDelta> deltas)
+        throws IOException {
+        for (PageDelta d : deltas) {
+            if (!d.isSlots()) {
+                continue;
+            }
+            int tableId = d.getPageId().getTableId();
+            TupleDesc td;
+            try {
+                td = Database.getCatalog().getTupleDesc(tableId);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            HeapPageId pid = new HeapPageId(tableId, d.getPageId().pageNumber());
+            for (int i = 0; i < d.size(); i++) {
+                RecordId rid = new RecordId(pid, d.position(i));
+                Tuple before = tuple(td, rid, d.before(i));
+                Tuple after = tuple(td, rid, d.after(i));
+                ChangeEvent.Kind kind;
+                if (before == null) {
+                    kind = ChangeEvent.Kind.INSERT;
+                } else if (after == null) {
+                    kind = ChangeEvent.Kind.DELETE;
+                } else {
+                    kind = ChangeEvent.Kind.UPDATE;
+                }
+                ready.add(new ChangeEvent(kind, tableId, rid, before, after,
+                                          tid, commitLsn, restartLsn));
+            }
+        }
+    }
+
+    /** Decode the bytes of a heap page slot, or return null for an empty one. */
+    private static Tuple tuple(TupleDesc td, RecordId rid, byte[] data) throws IOException {
+        if (data == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(in));
+            }
+        } catch (ParseException e) {
+            throw new IOException("could not decode a tuple of table " + rid.getPageId().getTableId());
+        }
+        t.setRecordId(rid);
+        return t;
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPageCache is the second tier of the BufferPool.  Clean pages
+ * evicted from the pool are deflated and kept here, bounded by the total
+ * number of compressed bytes, so that a later miss in the pool can be served
+ * without calling DbFile.readPage.
+ * <p>
+ * A page lives in at most one tier: a hit removes the page from this cache
+ * and hands it back to the BufferPool.  Entries are evicted in least recently
+ * used order.
+ *
+ * @Threadsafe, all methods are synchronized
+ */
+public class CompressedPageCache {
+
+    private static class Entry {
+        final byte[] data;
+        final int length;
+
+        Entry(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final LinkedHashMap<PageId, Entry> entries;
+    private long capacityBytes;
+    private long sizeBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Creates a cache that holds up to capacityBytes of compressed pages.
+     *
+     * @param capacityBytes maximum compressed bytes to hold; 0 disables the cache
+     */
+    public CompressedPageCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        this.entries = new LinkedHashMap<PageId, Entry>(16, 0.75f, true);
+    }
+
+    /** Compress a clean page and add it to the cache. */
+    public synchronized void put(Page p) {
+        if (capacityBytes <= 0) {
+            return;
+        }
+        byte[] raw = p.getPageData();
+        byte[] compressed = compress(raw);
+        if (compressed.length > capacityBytes) {
+            return;
+        }
+
+        remove(p.getId());
+        entries.put(p.getId(), new Entry(compressed, raw.length));
+        sizeBytes += compressed.length;
+        evict();
+    }
+
+    /**
+     * Remove a page from the cache and return it, or return null if the
+     * page is not cached.
+     */
+    public synchronized Page get(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        sizeBytes -= e.data.length;
+        hits++;
+
+        try {
+            return PageType.newPage(pid, decompress(e.data, e.length));
+        } catch (DataFormatException ex) {
+            // fall back to the DbFile
+            ex.printStackTrace();
+            return null;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Drop a page from the cache, if present. */
+    public synchronized void remove(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e != null) {
+            sizeBytes -= e.data.length;
+        }
+    }
+
+    /** Drop every page in the cache. */
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /** Change the byte budget of the cache, evicting as needed. */
+    public synchronized void setCapacity(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        evict();
+    }
+
+    public synchronized long getCapacity() {
+        return capacityBytes;
+    }
+
+    /** @return the number of compressed bytes currently held */
+    public synchronized long getSize() {
+        return sizeBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<PageId, Entry>> it = entries.entrySet().iterator();
+        while (sizeBytes > capacityBytes && it.hasNext()) {
+            sizeBytes -= it.next().getValue().data.length;
+            it.remove();
+        }
+    }
+
+    private byte[] compress(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+        byte[] buf = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] decompress(byte[] data, int length) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] raw = new byte[length];
+        int off = 0;
+        while (off < length && !inflater.finished()) {
+            off += inflater.inflate(raw, off, length - off);
+        }
+        return raw;
+    }
+}
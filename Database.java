@@ -14,6 +14,14 @@ import java.util.concurrent.atomic.AtomicReference;
  * @Threadsafe
  */
 public class Database {
+    /**
+     * Deadlock policy of the lock manager, chosen at startup with the
+     * simpledb.DeadlockPolicy system property: detect (the default),
+     * wait-die or wound-wait.  Must be initialized before _instance.
+     */
+    private final static LockManager.DeadlockPolicy DEADLOCK_POLICY =
+        LockManager.DeadlockPolicy.parse(System.getProperty("simpledb.DeadlockPolicy"));
+
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
@@ -23,7 +31,7 @@ public class Database {
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, DEADLOCK_POLICY);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -59,7 +67,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, DEADLOCK_POLICY));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +83,14 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // stop the old log's checkpointer, which would checkpoint the new
+        // buffer pool, and its writer thread, and release its files first
+        _instance.get()._logfile.stopCheckpointer();
+        try {
+            _instance.get()._logfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         _instance.set(new Database());
     }
 
@@ -76,8 +76,8 @@ public class HeapFile implements DbFile {
 			int offset = BufferPool.getPageSize() * pid.pageNumber();
 			byte[] data = new byte[BufferPool.getPageSize()];
 			if (offset + BufferPool.getPageSize() > file.length()) {
-				System.err.println("page offset exceeds max size");
-				System.exit(1);
+				file.close();
+				throw new IllegalArgumentException("Read past end of table");
             }
 			file.seek(offset);
             file.readFully(data);
@@ -93,6 +93,36 @@ public class HeapFile implements DbFile {
 		}
     }
 
+    /**
+     * Reads count consecutive pages starting at page first with a single
+     * sequential read.  Pages past the end of the file are not returned.
+     *
+     * @return the pages read, in page number order
+     */
+    public ArrayList<Page> readPages(int first, int count) throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        count = Math.min(count, this.numPages() - first);
+        if (first < 0 || count <= 0) {
+            return pages;
+        }
+
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[pageSize * count];
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            file.seek((long)first * pageSize);
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+
+        for (int i = 0; i < count; i++) {
+            byte[] pageData = Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize);
+            pages.add(new HeapPage(new HeapPageId(this.getId(), first + i), pageData));
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -123,20 +153,28 @@ public class HeapFile implements DbFile {
         // some code goes here
     	HeapPage page = null;
     	int pageNo = 0;
-    	while(pageNo < this.numPages()) {
-    		page = (HeapPage) Database.getBufferPool().getPage(tid, 
-    				new HeapPageId(this.getId(), pageNo), Permissions.READ_WRITE);
-    		if (page.getNumEmptySlots() > 0) break;
-    		Database.getBufferPool().releasePage(tid, page.getId());
-        	pageNo++;
+    	int numPages = this.numPages();
+    	while (true) {
+	    	while(pageNo < numPages) {
+	    		page = (HeapPage) Database.getBufferPool().getPage(tid, 
+	    				new HeapPageId(this.getId(), pageNo), Permissions.READ_WRITE);
+	    		if (page.getNumEmptySlots() > 0) break;
+	    		Database.getBufferPool().releasePage(tid, page.getId());
+	        	pageNo++;
+	    	}
+	    	if (pageNo < numPages) break;
+
+	    	// every page is full: append an empty one, unless another
+	    	// transaction appended one meanwhile, then look at the new pages
+	    	synchronized (this) {
+	    		if (this.numPages() == numPages) {
+	    			this.writePage(new HeapPage(new HeapPageId(this.getId(), pageNo),
+	    					HeapPage.createEmptyPageData()));
+	    		}
+	    	}
+	    	numPages = this.numPages();
     	}
     	
-    	
-    	page = new HeapPage(new HeapPageId(this.getId(),pageNo), HeapPage.createEmptyPageData());
-    	this.writePage(page);
-    	page = (HeapPage)Database.getBufferPool().getPage(tid, 
-    			new HeapPageId(this.getId(),pageNo),Permissions.READ_WRITE);
-    	
     	page.insertTuple(t);
     	ArrayList<Page> res = new ArrayList<Page>();
     	res.add(page);
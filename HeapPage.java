@@ -20,7 +20,7 @@ public class HeapPage implements Page {
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
     private TransactionId dirtyid = null;
 
     /**
@@ -108,6 +108,15 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Set the before image to data, for a page read back with changes
+        that are not committed yet. */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data.clone();
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -1,213 +1,706 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * LockManager keeps hierarchical locks for the BufferPool.  Tables and
+ * pages can be locked, in the IS, IX, S, SIX and X modes of
+ * multi-granularity locking.  Locking a page first takes the matching
+ * intention lock on its table, and a transaction holding an S, SIX or X
+ * lock on a table needs no page locks underneath it.
+ * <p>
+ * Each lockable resource has a queue of lock requests.  A transaction whose
+ * request conflicts with the current holders, or with requests queued ahead
+ * of it, waits on the resource's monitor and is woken when a lock on that
+ * resource is released.  Requests are granted in FIFO order, except that a
+ * holder converting its lock to a stronger mode is queued ahead of other
+ * waiters.
+ * <p>
+ * Uncontended IS and S requests don't take the monitor at all.  Each
+ * resource has a lock word counting the transactions that got a shared
+ * lock through this fast path, plus a SLOW bit.  While SLOW is clear a
+ * shared request just increments the count with a CAS.  The first request
+ * that needs the queue (any other mode, or a conversion) sets SLOW and
+ * moves the fast holders into the queue's granted set, and SLOW is cleared
+ * again once the resource has no holders or waiters left.
+ * <p>
+ * Waiting transactions record who they wait for in a WaitsForGraph.  Edges
+ * are only added and removed as transactions block and unblock, and a lock
+ * request that can be granted right away touches no shared state besides
+ * the resource's own lock.  A background detector thread runs while anyone
+ * is waiting, looks for cycles every DETECTION_INTERVAL milliseconds and
+ * wakes the chosen victims, which then fail with a
+ * TransactionAbortedException.
+ * <p>
+ * Instead of detection, deadlocks can be prevented with the timestamp-based
+ * WAIT_DIE or WOUND_WAIT policies, which order transactions by their ids
+ * (smaller ids are older) and never build the waits-for graph.
+ * <p>
+ * A transaction that locks more than escalationThreshold pages of one
+ * table, as a scan of a large HeapFile does, is escalated to a single S
+ * (or, if it has been writing, X) lock on the table, and its page locks
+ * on that table are released.  Escalation never waits: if
+ * the table lock can't be granted right away it is retried at the next
+ * page lock.
+ */
 public class LockManager {
-	
-	private static TransactionId NO_LOCK = new TransactionId();
-	private ConcurrentHashMap<PageId, Object> lockMap;
-	private ConcurrentHashMap<PageId, HashSet<TransactionId>> sharedlockMap;
-	private ConcurrentHashMap<PageId, TransactionId> exclusivelockMap;
-	private ConcurrentHashMap<TransactionId, HashSet<PageId>> transactionPageMap;
-	private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> dependencyMap;
+
+	/** How lock conflicts that could deadlock are resolved. */
+	public enum DeadlockPolicy {
+		/** Wait, and abort the youngest member of any waits-for cycle. */
+		DETECT,
+		/** An older requester waits; a younger one aborts immediately. */
+		WAIT_DIE,
+		/** An older requester aborts the younger holders it waits for; a younger one waits. */
+		WOUND_WAIT;
+
+		/** Parse a policy name, case-insensitively; null gives DETECT. */
+		public static DeadlockPolicy parse(String name) {
+			if (name == null || name.isEmpty()) {
+				return DETECT;
+			}
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/** Multi-granularity lock modes. */
+	public enum LockMode {
+		IS, IX, S, SIX, X;
+
+		// rows and columns in declaration order
+		private static final boolean[][] COMPATIBLE = {
+			/*         IS     IX     S      SIX    X   */
+			/* IS  */ {true,  true,  true,  true,  false},
+			/* IX  */ {true,  true,  false, false, false},
+			/* S   */ {true,  false, true,  false, false},
+			/* SIX */ {true,  false, false, false, false},
+			/* X   */ {false, false, false, false, false},
+		};
+
+		public boolean isCompatible(LockMode other) {
+			return COMPATIBLE[this.ordinal()][other.ordinal()];
+		}
+
+		/** @return true if holding this mode grants everything other grants */
+		public boolean covers(LockMode other) {
+			if (this == other || this == X || other == IS) {
+				return true;
+			}
+			return this == SIX && (other == S || other == IX);
+		}
+
+		/** @return the weakest mode that covers both this and other */
+		public LockMode join(LockMode other) {
+			if (this.covers(other)) {
+				return this;
+			}
+			if (other.covers(this)) {
+				return other;
+			}
+			if (this == X || other == X) {
+				return X;
+			}
+			return SIX; // S with IX, in either order
+		}
+	}
+
+	/** Lockable resource standing for a whole table. */
+	private static final class TableKey {
+		final int tableId;
+
+		TableKey(int tableId) {
+			this.tableId = tableId;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof TableKey && ((TableKey)o).tableId == this.tableId;
+		}
+
+		public int hashCode() {
+			return this.tableId;
+		}
+	}
+
+	/** A pending request for a lock on one resource. */
+	private static class LockRequest {
+		final TransactionId tid;
+		final LockMode mode;
+
+		LockRequest(TransactionId tid, LockMode mode) {
+			this.tid = tid;
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * Holders and waiters of the lock on one resource.  granted and waiters
+	 * are protected by the object's monitor; word and fastHolders are
+	 * updated lock-free by the shared fast path.
+	 */
+	private static class ResourceLock {
+		/** Set in word once the resource is managed by the queue. */
+		static final int SLOW = 1 << 30;
+
+		final HashMap<TransactionId, LockMode> granted = new HashMap<TransactionId, LockMode>();
+		final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+		/** Number of fast path holders, or'ed with SLOW. */
+		final AtomicInteger word = new AtomicInteger(0);
+		final ConcurrentHashMap<TransactionId, LockMode> fastHolders =
+			new ConcurrentHashMap<TransactionId, LockMode>();
+
+		/** Grant a shared mode with a CAS, unless the resource is in slow mode. */
+		boolean tryShared(TransactionId tid, LockMode mode) {
+			while (true) {
+				int w = this.word.get();
+				if ((w & SLOW) != 0) {
+					return false;
+				}
+				if (this.word.compareAndSet(w, w + 1)) {
+					this.fastHolders.put(tid, mode);
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Switch the resource to slow mode and move all fast holders into
+		 * granted.  Caller holds the monitor.
+		 */
+		void enterSlowMode() {
+			int w = this.word.get();
+			while ((w & SLOW) == 0 && !(this.word.compareAndSet(w, w | SLOW))) {
+				w = this.word.get();
+			}
+
+			while ((this.word.get() & ~SLOW) != 0) {
+				for (Map.Entry<TransactionId, LockMode> e : this.fastHolders.entrySet()) {
+					if (this.fastHolders.remove(e.getKey(), e.getValue())) {
+						this.granted.put(e.getKey(), e.getValue());
+						this.word.decrementAndGet();
+					}
+				}
+				if ((this.word.get() & ~SLOW) != 0) {
+					// a fast acquirer or releaser is between its CAS and the map update
+					Thread.yield();
+				}
+			}
+		}
+
+		/** Return to the fast path once nobody holds or waits.  Caller holds the monitor. */
+		void leaveSlowModeIfIdle() {
+			if (this.granted.isEmpty() && this.waiters.isEmpty()) {
+				this.word.compareAndSet(SLOW, 0);
+			}
+		}
+	}
+
+	/** Milliseconds between two runs of the deadlock detector. */
+	static final long DETECTION_INTERVAL = 20;
+
+	/** Default number of page locks on one table before escalating. */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+	private ConcurrentHashMap<Object, ResourceLock> lockMap;
+	/** The locks each transaction holds; each map is protected by its own monitor. */
+	private ConcurrentHashMap<TransactionId, HashMap<Object, LockMode>> transactionLockMap;
+	/** Number of page locks each transaction holds per table; guarded like transactionLockMap. */
+	private ConcurrentHashMap<TransactionId, HashMap<Integer, Integer>> pageLockCounts;
+	private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+	private WaitsForGraph waitsFor;
+
+	/** The lock each blocked transaction is waiting on, so a victim can be woken. */
+	private ConcurrentHashMap<TransactionId, ResourceLock> waitingOn;
+	/** Transactions chosen by the detector that have not noticed yet. */
+	private Set<TransactionId> victims;
+	private AtomicBoolean detectorRunning;
+	private final DeadlockPolicy policy;
 
 	public LockManager() {
-		this.lockMap = new ConcurrentHashMap<PageId, Object>();
-		this.sharedlockMap = new ConcurrentHashMap<PageId, HashSet<TransactionId>>();
-		this.exclusivelockMap = new ConcurrentHashMap<PageId, TransactionId>();
-		this.transactionPageMap = new ConcurrentHashMap<TransactionId, HashSet<PageId>>();
-		this.dependencyMap = new ConcurrentHashMap<TransactionId, HashSet<TransactionId>>();
+		this(DeadlockPolicy.DETECT);
 	}
 
-	
+	public LockManager(DeadlockPolicy policy) {
+		this.policy = policy;
+		this.lockMap = new ConcurrentHashMap<Object, ResourceLock>();
+		this.transactionLockMap = new ConcurrentHashMap<TransactionId, HashMap<Object, LockMode>>();
+		this.pageLockCounts = new ConcurrentHashMap<TransactionId, HashMap<Integer, Integer>>();
+		this.waitsFor = new WaitsForGraph();
+		this.waitingOn = new ConcurrentHashMap<TransactionId, ResourceLock>();
+		this.victims = ConcurrentHashMap.newKeySet();
+		this.detectorRunning = new AtomicBoolean(false);
+	}
+
+	public DeadlockPolicy getPolicy() {
+		return this.policy;
+	}
 
+	/**
+	 * Set how many page locks a transaction may hold on one table before
+	 * they are escalated to a table lock; 0 or less disables escalation.
+	 */
+	public void setEscalationThreshold(int threshold) {
+		this.escalationThreshold = threshold;
+	}
+
+	public int getEscalationThreshold() {
+		return this.escalationThreshold;
+	}
 
+	/**
+	 * Acquire a lock on page pid with permissions p on behalf of tid,
+	 * blocking until it can be granted.  Takes an IS or IX lock on the
+	 * page's table first, unless tid's table lock already covers the page.
+	 *
+	 * @throws TransactionAbortedException if tid was chosen to break or
+	 *     prevent a deadlock
+	 */
 	public void getLock(TransactionId tid, PageId pid, Permissions p)
 		throws TransactionAbortedException {
+		TableKey table = new TableKey(pid.getTableId());
+		if (this.covers(tid, table, p)) {
+			return;
+		}
+
+		this.acquire(tid, table, p == Permissions.READ_ONLY ? LockMode.IS : LockMode.IX);
+		this.acquire(tid, pid, p == Permissions.READ_ONLY ? LockMode.S : LockMode.X);
 
-		if (!(this.dependencyMap.containsKey(tid))) {
-			this.dependencyMap.put(tid, new HashSet<TransactionId>());
+		int threshold = this.escalationThreshold;
+		if (threshold > 0 && this.countPageLocks(tid, pid.getTableId()) > threshold) {
+			this.escalate(tid, table);
 		}
+	}
 
-		Object lock = this.getLock(pid);
-		if ((p == Permissions.READ_ONLY) &&
-				!(this.sharedlockMap.get(pid).contains(tid))) {
-			while (true) {
-				synchronized(lock) {
-					if (this.exclusivelockMap.get(pid).equals(NO_LOCK) ||
-							this.exclusivelockMap.get(pid).equals(tid)) {
-						synchronized(this.sharedlockMap.get(pid)) {
-							this.sharedlockMap.get(pid).add(tid);
-						}
+	/**
+	 * Like getLock, but never waits: returns false, leaving the page
+	 * unlocked, if the lock can't be granted right away.
+	 */
+	public boolean tryGetLock(TransactionId tid, PageId pid, Permissions p)
+		throws TransactionAbortedException {
+		TableKey table = new TableKey(pid.getTableId());
+		if (this.covers(tid, table, p)) {
+			return true;
+		}
 
-						synchronized(this.dependencyMap) {
-							this.dependencyMap.remove(tid);
-						}
+		if (!(this.acquire(tid, table, p == Permissions.READ_ONLY ? LockMode.IS : LockMode.IX, false)) ||
+				!(this.acquire(tid, pid, p == Permissions.READ_ONLY ? LockMode.S : LockMode.X, false))) {
+			return false;
+		}
 
-						break;
-					}
+		int threshold = this.escalationThreshold;
+		if (threshold > 0 && this.countPageLocks(tid, pid.getTableId()) > threshold) {
+			this.escalate(tid, table);
+		}
+		return true;
+	}
 
-					// Check for confilt-serializable.
-					synchronized(this.dependencyMap) {
-						if (this.dependencyMap.get(tid).add(this.exclusivelockMap.get(pid))) {
-							if (this.isConfiltSerializable(tid)) {
-								throw new TransactionAbortedException();
-							}
-						}
-					}
+	/** @return the number of page locks tid holds on the given table */
+	private int countPageLocks(TransactionId tid, int tableId) {
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		if (held == null) {
+			return 0;
+		}
+		synchronized(held) {
+			HashMap<Integer, Integer> counts = this.pageLockCounts.get(tid);
+			Integer n = counts == null ? null : counts.get(tableId);
+			return n == null ? 0 : n;
+		}
+	}
+
+	/**
+	 * Try to replace tid's page locks on a table by one table
+	 * lock: S if tid only read the table (it holds IS), X otherwise.
+	 * Does nothing if the table lock conflicts with other transactions.
+	 */
+	private void escalate(TransactionId tid, TableKey table)
+		throws TransactionAbortedException {
+		LockMode intention = this.getMode(tid, table);
+		LockMode mode = intention == LockMode.IS ? LockMode.S : LockMode.X;
+		if (!(this.acquire(tid, table, mode, false))) {
+			return;
+		}
+
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		ArrayList<Object> covered = new ArrayList<Object>();
+		synchronized(held) {
+			Iterator<Object> it = held.keySet().iterator();
+			while (it.hasNext()) {
+				Object resource = it.next();
+				if (resource instanceof PageId &&
+						((PageId)resource).getTableId() == table.tableId) {
+					covered.add(resource);
+					it.remove();
 				}
 			}
-		} else if ((p == Permissions.READ_WRITE) && !(this.exclusivelockMap.get(pid).equals(tid))) {
-			while (true) {
-				synchronized(lock) {
-					HashSet<TransactionId> depMap = new HashSet<TransactionId>();
-					if (!(this.exclusivelockMap.get(pid).equals(NO_LOCK))) {
-						depMap.add(this.exclusivelockMap.get(pid));
-					}
+			HashMap<Integer, Integer> counts = this.pageLockCounts.get(tid);
+			if (counts != null) {
+				counts.remove(table.tableId);
+			}
+		}
 
-					synchronized(this.sharedlockMap.get(pid)) {
-						Iterator<TransactionId> it = this.sharedlockMap.get(pid).iterator();
-						while (it.hasNext()) {
-							TransactionId t = it.next();
-							if (!(t.equals(tid))) {
-								depMap.add(t);
-							}
-						}
-					}
-					
-					
-					if (depMap.isEmpty()) {
-						// Remove the shared lock if current page holds.
-						synchronized(this.sharedlockMap.get(pid)) {
-							this.sharedlockMap.get(pid).remove(tid);
-						}
+		for (Object resource : covered) {
+			this.release(tid, resource);
+		}
+	}
 
-						this.exclusivelockMap.put(pid, tid);
+	/**
+	 * Acquire an S (READ_ONLY) or X (READ_WRITE) lock on a whole table.  A
+	 * transaction already holding IX on the table asking for S gets SIX.
+	 */
+	public void getTableLock(TransactionId tid, int tableId, Permissions p)
+		throws TransactionAbortedException {
+		this.acquire(tid, new TableKey(tableId), p == Permissions.READ_ONLY ? LockMode.S : LockMode.X);
+	}
 
-						synchronized(this.dependencyMap) {
-							this.dependencyMap.remove(tid);
-						}
+	/** @return true if tid's lock on resource grants access with permissions p */
+	private boolean covers(TransactionId tid, Object resource, Permissions p) {
+		LockMode held = this.getMode(tid, resource);
+		if (held == null) {
+			return false;
+		}
+		return held.covers(p == Permissions.READ_ONLY ? LockMode.S : LockMode.X);
+	}
+
+	/** @return the mode tid holds on resource, or null */
+	private LockMode getMode(TransactionId tid, Object resource) {
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		if (held == null) {
+			return null;
+		}
+		synchronized(held) {
+			return held.get(resource);
+		}
+	}
+
+	/**
+	 * Acquire mode on resource for tid, converting any lock tid already
+	 * holds on it to the join of both modes.
+	 */
+	private void acquire(TransactionId tid, Object resource, LockMode mode)
+		throws TransactionAbortedException {
+		this.acquire(tid, resource, mode, true);
+	}
+
+	/**
+	 * Acquire mode on resource for tid, as above.  If wait is false and
+	 * the lock can't be granted right away, gives up and returns false.
+	 */
+	private boolean acquire(TransactionId tid, Object resource, LockMode mode, boolean wait)
+		throws TransactionAbortedException {
+
+		if (this.policy == DeadlockPolicy.WOUND_WAIT && this.victims.remove(tid)) {
+			// wounded by an older transaction while it was running
+			throw new TransactionAbortedException();
+		}
+
+		ResourceLock lock = this.getResourceLock(resource);
+		LockMode fast = lock.fastHolders.get(tid);
+		if (fast != null && fast.covers(mode)) {
+			return true;
+		}
+		if (fast == null && (mode == LockMode.IS || mode == LockMode.S) &&
+				lock.tryShared(tid, mode)) {
+			this.recordLock(tid, resource, mode);
+			return true;
+		}
 
-						break;
+		LockMode target;
+		synchronized(lock) {
+			lock.enterSlowMode();
+			LockMode held = lock.granted.get(tid);
+			if (held != null && held.covers(mode)) {
+				return true;
+			}
+
+			target = held == null ? mode : held.join(mode);
+			LockRequest req = new LockRequest(tid, target);
+			if (held != null) {
+				// conversions go first, since the holder blocks everyone behind it anyway
+				lock.waiters.addFirst(req);
+				lock.notifyAll();
+			} else {
+				lock.waiters.addLast(req);
+			}
+
+			boolean waited = false;
+			try {
+				HashSet<TransactionId> blockers = this.getBlockers(lock, req);
+				while (!(blockers.isEmpty())) {
+					if (!wait) {
+						return false;
+					}
+					if (!waited) {
+						waited = true;
+						this.waitingOn.put(tid, lock);
+						if (this.policy == DeadlockPolicy.DETECT) {
+							this.startDetector();
+						}
+					}
+					if (this.victims.remove(tid)) {
+						throw new TransactionAbortedException();
 					}
 
-					// Check confilt-serializable.
-					synchronized(this.dependencyMap) {
-						if (this.dependencyMap.get(tid).add(this.exclusivelockMap.get(pid)) ||
-							this.dependencyMap.get(tid).addAll(depMap)) {
-							if (this.isConfiltSerializable(tid)) {
+					if (this.policy == DeadlockPolicy.WAIT_DIE) {
+						for (TransactionId b : blockers) {
+							if (b.getId() < tid.getId()) {
 								throw new TransactionAbortedException();
 							}
 						}
+						lock.wait();
+					} else if (this.policy == DeadlockPolicy.WOUND_WAIT) {
+						for (TransactionId b : blockers) {
+							if (b.getId() > tid.getId()) {
+								this.wound(b, lock);
+							}
+						}
+						// wounded holders waiting on other resources can't be
+						// notified from here, so recheck periodically
+						lock.wait(DETECTION_INTERVAL);
+					} else {
+						if (!(blockers.equals(this.waitsFor.getWaitsFor(tid)))) {
+							this.waitsFor.setWaitsFor(tid, blockers);
+						}
+						lock.wait();
+					}
+					blockers = this.getBlockers(lock, req);
+				}
+
+				lock.granted.put(tid, target);
+			} catch (InterruptedException e) {
+				throw new TransactionAbortedException();
+			} finally {
+				lock.waiters.remove(req);
+				if (waited) {
+					this.waitsFor.remove(tid);
+					this.waitingOn.remove(tid);
+					if (this.policy == DeadlockPolicy.DETECT) {
+						// the cycle it was picked from no longer exists
+						this.victims.remove(tid);
 					}
 				}
+				lock.leaveSlowModeIfIdle();
+				// the head of the queue may have changed
+				lock.notifyAll();
+			}
+		}
+
+		this.recordLock(tid, resource, target);
+		return true;
+	}
+
+	/** Record in tid's lock map that it now holds mode on resource. */
+	private void recordLock(TransactionId tid, Object resource, LockMode mode) {
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		if (held == null) {
+			this.transactionLockMap.putIfAbsent(tid, new HashMap<Object, LockMode>());
+			held = this.transactionLockMap.get(tid);
+		}
+
+		synchronized(held) {
+			if (held.put(resource, mode) == null && resource instanceof PageId) {
+				this.countPageLock(tid, ((PageId)resource).getTableId(), 1);
 			}
 		}
-		
-		if (!(this.transactionPageMap.containsKey(tid))) {
-			this.transactionPageMap.put(tid, new HashSet<PageId>());
+	}
+
+	/** Adjust tid's page lock count on a table; caller holds tid's lock map monitor. */
+	private void countPageLock(TransactionId tid, int tableId, int delta) {
+		HashMap<Integer, Integer> counts = this.pageLockCounts.get(tid);
+		if (counts == null) {
+			counts = new HashMap<Integer, Integer>();
+			this.pageLockCounts.put(tid, counts);
 		}
-		
-		synchronized(this.transactionPageMap.get(tid)) {
-			this.transactionPageMap.get(tid).add(pid);
+		Integer n = counts.get(tableId);
+		int updated = (n == null ? 0 : n) + delta;
+		if (updated > 0) {
+			counts.put(tableId, updated);
+		} else {
+			counts.remove(tableId);
 		}
 	}
 
 	public void releaseLock(TransactionId tid, PageId pid) {
-		if (!(this.transactionPageMap.containsKey(tid))) {
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		if (held == null) {
 			return;
 		}
 
-		Object lock = this.getLock(pid);
-		synchronized(lock) {
-			if (this.exclusivelockMap.get(pid).equals(tid)) {
-				this.exclusivelockMap.put(pid, NO_LOCK);
-			}
-	
-			synchronized(this.sharedlockMap.get(pid)) {
-				this.sharedlockMap.get(pid).remove(tid);
-			}
-		}
+		this.release(tid, pid);
 
-		synchronized(this.transactionPageMap.get(tid)) {
-			this.transactionPageMap.get(tid).remove(pid);
+		synchronized(held) {
+			if (held.remove(pid) != null) {
+				this.countPageLock(tid, pid.getTableId(), -1);
+			}
 		}
 	}
 
 	public void releaseAllLocks(TransactionId tid) {
-		if (!(this.transactionPageMap.containsKey(tid))) {
+		this.victims.remove(tid);
+		HashMap<Object, LockMode> held = this.transactionLockMap.remove(tid);
+		this.pageLockCounts.remove(tid);
+		if (held == null) {
 			return;
 		}
 
-		Iterator<PageId> it = this.getPages(tid);
-		while (it.hasNext()) {
-			PageId pid = it.next();
-
-			Object lock = this.getLock(pid);
-			synchronized(lock) {
-				if (this.exclusivelockMap.get(pid).equals(tid)) {
-					this.exclusivelockMap.put(pid, NO_LOCK);
-				}
-	
-				synchronized(this.sharedlockMap.get(pid)) {
-					this.sharedlockMap.get(pid).remove(tid);
-				}
+		synchronized(held) {
+			Iterator<Object> it = held.keySet().iterator();
+			while (it.hasNext()) {
+				this.release(tid, it.next());
 			}
 		}
+	}
+
+	private void release(TransactionId tid, Object resource) {
+		ResourceLock lock = this.getResourceLock(resource);
+		if (lock.fastHolders.remove(tid) != null) {
+			// nobody can be waiting for a fast holder: the queue moves them
+			// all into granted before it waits
+			lock.word.decrementAndGet();
+			return;
+		}
 
-		this.transactionPageMap.remove(tid);
+		synchronized(lock) {
+			lock.granted.remove(tid);
+			lock.leaveSlowModeIfIdle();
+			lock.notifyAll();
+		}
 	}
-	
-	private Object getLock(PageId pid) {
-		if (!(this.lockMap.containsKey(pid))) {
-			this.lockMap.put(pid, new Object());
-			this.sharedlockMap.put(pid, new HashSet<TransactionId>());
-			this.exclusivelockMap.put(pid, NO_LOCK);
+
+	private ResourceLock getResourceLock(Object resource) {
+		ResourceLock lock = this.lockMap.get(resource);
+		if (lock == null) {
+			this.lockMap.putIfAbsent(resource, new ResourceLock());
+			lock = this.lockMap.get(resource);
 		}
 
-		return this.lockMap.get(pid);
+		return lock;
 	}
-	
 
-	public Iterator<PageId> getPages(TransactionId tid) {
-		if (!(this.transactionPageMap.containsKey(tid))) {
-			return null;
+	/**
+	 * Return the transactions req has to wait for: holders whose locks
+	 * conflict with it and, to keep the queue FIFO, requests queued ahead of
+	 * it.  An empty set means req can be granted.  Caller holds the monitor.
+	 */
+	private HashSet<TransactionId> getBlockers(ResourceLock lock, LockRequest req) {
+		HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+		for (Map.Entry<TransactionId, LockMode> e : lock.granted.entrySet()) {
+			if (!(e.getKey().equals(req.tid)) && !(req.mode.isCompatible(e.getValue()))) {
+				blockers.add(e.getKey());
+			}
+		}
+
+		for (LockRequest ahead : lock.waiters) {
+			if (ahead == req) {
+				break;
+			}
+			if (!(ahead.tid.equals(req.tid))) {
+				blockers.add(ahead.tid);
+			}
 		}
 
-		return this.transactionPageMap.get(tid).iterator();
+		return blockers;
 	}
 
-	public boolean holdsLock(TransactionId tid, PageId pid) {
-		if (!(this.transactionPageMap.containsKey(tid))) {
-			return false;
+	/**
+	 * Abort a younger transaction that an older one waits for.  The victim
+	 * notices at its next lock request, or while waiting for one; it is
+	 * woken right away if it waits on lock, whose monitor the caller holds.
+	 */
+	private void wound(TransactionId victim, ResourceLock lock) {
+		this.victims.add(victim);
+		if (this.waitingOn.get(victim) == lock) {
+			lock.notifyAll();
 		}
+	}
 
-		synchronized(this.transactionPageMap.get(tid)) {
-			return this.transactionPageMap.get(tid).contains(pid);
+	/**
+	 * Start the deadlock detector unless it is already running.  The
+	 * detector stops by itself once no transaction is waiting.
+	 */
+	private void startDetector() {
+		if (!(this.detectorRunning.compareAndSet(false, true))) {
+			return;
 		}
+
+		Thread detector = new Thread("simpledb-deadlock-detector") {
+			public void run() {
+				detectDeadlocks();
+			}
+		};
+		detector.setDaemon(true);
+		detector.start();
 	}
-	
 
-	// Run BFS to detect cycles.
-	private boolean isConfiltSerializable(TransactionId tid) {
-		HashSet<TransactionId> visitedTransaction = new HashSet<TransactionId>();
-		LinkedList<TransactionId> queue = new LinkedList<TransactionId>();
-		queue.add(tid);
-		while (!(queue.isEmpty())) {
-			TransactionId curTra = queue.remove();
-			if (visitedTransaction.contains(curTra)) return true;
-			visitedTransaction.add(curTra);
-			if (this.dependencyMap.containsKey(curTra) && !(this.dependencyMap.get(curTra).isEmpty())) {
-				Iterator<TransactionId> itor = this.dependencyMap.get(curTra).iterator();
-				while (itor.hasNext()) {
-					queue.add(itor.next());
+	private void detectDeadlocks() {
+		while (true) {
+			try {
+				Thread.sleep(DETECTION_INTERVAL);
+			} catch (InterruptedException e) {
+				this.detectorRunning.set(false);
+				return;
+			}
+
+			if (this.waitsFor.isEmpty()) {
+				this.detectorRunning.set(false);
+				// a transaction may have blocked after the check
+				if (this.waitsFor.isEmpty() ||
+						!(this.detectorRunning.compareAndSet(false, true))) {
+					return;
+				}
+			}
+
+			for (TransactionId victim : this.waitsFor.findVictims()) {
+				ResourceLock lock = this.waitingOn.get(victim);
+				if (lock == null) {
+					continue; // granted in the meantime
+				}
+				synchronized(lock) {
+					// the victim stops waiting under this monitor, so the
+					// flag is never left behind for a later request
+					if (this.waitingOn.get(victim) == lock) {
+						this.victims.add(victim);
+						lock.notifyAll();
+					}
 				}
 			}
 		}
+	}
 
-		return false;
+	/**
+	 * Return the pages tid holds page locks on, or null if tid holds no
+	 * locks at all.  Pages covered by a table lock are not included.
+	 */
+	public Iterator<PageId> getPages(TransactionId tid) {
+		HashMap<Object, LockMode> held = this.transactionLockMap.get(tid);
+		if (held == null) {
+			return null;
+		}
+
+		ArrayList<PageId> pages = new ArrayList<PageId>();
+		synchronized(held) {
+			for (Object resource : held.keySet()) {
+				if (resource instanceof PageId) {
+					pages.add((PageId)resource);
+				}
+			}
+		}
+		return pages.iterator();
+	}
+
+	/** @return true if tid holds a lock on pid, or a table lock covering it */
+	public boolean holdsLock(TransactionId tid, PageId pid) {
+		LockMode onPage = this.getMode(tid, pid);
+		if (onPage == LockMode.S || onPage == LockMode.SIX || onPage == LockMode.X) {
+			return true;
+		}
+		return this.covers(tid, new TableKey(pid.getTableId()), Permissions.READ_ONLY);
 	}
-}
\ No newline at end of file
+}
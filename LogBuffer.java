@@ -0,0 +1,349 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogBuffer is the in-memory tail of the write ahead log.  Appending threads
+ * reserve room for a record with an atomic add on the tail LSN and copy it
+ * into a preallocated ring buffer concurrently, without taking a lock.  A
+ * dedicated writer thread drains the filled part of the ring to the
+ * LogSegments with large writes, forces the log when a thread waits for
+ * durability, and publishes the durable LSN.  Threads that wait while a
+ * force is running are all covered by the next one, so commits share
+ * forces.  Asynchronous commits do not wait at all: they ask for a force
+ * within a bounded delay, see flushLater.
+ * <p>
+ * Records are handed to the writer in LSN order: after copying its record,
+ * an appender waits for the records before it to be copied too, spinning
+ * briefly and then sleeping until the appender before it publishes, so a
+ * descheduled appender does not keep the ones after it busy.  A record
+ * larger than the ring is written straight to the segments once everything
+ * before it has been written.
+ *
+ * @Threadsafe
+ */
+public class LogBuffer {
+
+    /** Default size of the ring buffer, in bytes */
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    /** Milliseconds the writer sleeps between drains when nobody waits on it */
+    static final long WRITER_IDLE_MILLIS = 5;
+
+    /** Times an appender checks for the records before it to be copied
+        before it sleeps */
+    static final int PUBLISH_SPINS = 100;
+
+    private final LogSegments log;
+    private final byte[] ring;
+
+    /** Next LSN to hand out */
+    private final AtomicLong tail = new AtomicLong();
+    /** LSN up to which records have been copied into the ring */
+    private final AtomicLong published = new AtomicLong();
+    /** Waited on by appenders that sleep in waitPublished */
+    private final Object publishLock = new Object();
+    private final AtomicInteger publishWaiters = new AtomicInteger();
+    /** LSN up to which the log has been written to the segments */
+    private volatile long written;
+    /** LSN up to which the log has been forced to disk */
+    private volatile long durable;
+
+    /** Guards forceRequested, the lazy force and failure; waited on for
+        the writer */
+    private final Object flushLock = new Object();
+    private long forceRequested;
+    private long lazyRequested;
+    private long lazyDeadline = Long.MAX_VALUE; // System.nanoTime()
+    private IOException failure;
+
+    /** Guards the segments */
+    private final Object ioLock = new Object();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a buffer in front of the given segments and starts its writer
+     * thread.  The buffer owns the segments from then on.
+     *
+     * @param log the segments to write to
+     * @param capacity the size of the ring buffer, in bytes
+     */
+    public LogBuffer(LogSegments log, int capacity) {
+        this.log = log;
+        this.ring = new byte[capacity];
+        this.writer = new Thread("simpledb-log-writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** @return the LSN the next record will be appended at */
+    public long getTail() {
+        return tail.get();
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    public long getDurableLsn() {
+        return durable;
+    }
+
+    /**
+     * Append a record.  The last eight bytes of the record are overwritten
+     * with the LSN it is appended at, its trailer.
+     *
+     * @param record the record, in its first size bytes
+     * @param size the size of the record
+     * @return the LSN of the record
+     */
+    public long append(byte[] record, int size) throws IOException {
+        long start = tail.getAndAdd(size);
+        long end = start + size;
+        LogFile.putLong(record, size - LogFile.LONG_SIZE, start);
+
+        if (size > ring.length) {
+            waitPublished(start);
+            flush(start);
+            synchronized (ioLock) {
+                log.seek(start);
+                log.write(record, 0, size);
+                written = end;
+            }
+            publish(end);
+            return start;
+        }
+
+        if (end - written > ring.length) {
+            flush(end - ring.length); // wait for room
+        }
+        int from = (int)(start % ring.length);
+        int first = Math.min(size, ring.length - from);
+        System.arraycopy(record, 0, ring, from, first);
+        if (first < size) {
+            System.arraycopy(record, first, ring, 0, size - first);
+        }
+        waitPublished(start);
+        publish(end);
+        return start;
+    }
+
+    /** Wait for every record before lsn to be in the ring. */
+    private void waitPublished(long lsn) throws IOException {
+        for (int i = 0; i < PUBLISH_SPINS; i++) {
+            if (published.get() == lsn) {
+                return;
+            }
+            Thread.yield();
+        }
+        synchronized (publishLock) {
+            // registered before checking, so publish() sees us or we see it
+            publishWaiters.incrementAndGet();
+            try {
+                while (published.get() != lsn) {
+                    publishLock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted appending to the log");
+            } finally {
+                publishWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    /** Mark the records up to end as copied and wake the appenders
+        waiting for them. */
+    private void publish(long end) {
+        published.set(end);
+        if (publishWaiters.get() > 0) {
+            synchronized (publishLock) {
+                publishLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to lsn.  Durable LSNs always fall on
+     * record boundaries, so flushing to one past the start of a record
+     * flushes the whole record.
+     */
+    public void flush(long lsn) throws IOException {
+        if (durable >= lsn) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (forceRequested < lsn) {
+                forceRequested = lsn;
+            }
+            flushLock.notifyAll();
+            while (durable < lsn) {
+                if (failure != null) {
+                    IOException e = new IOException("log writer failed");
+                    e.initCause(failure);
+                    throw e;
+                }
+                if (!running) {
+                    throw new IOException("log writer stopped");
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted waiting for the log");
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask for the log to be forced up to lsn within maxDelayMillis, without
+     * waiting for it.  Requests made before the force are all covered by it.
+     */
+    public void flushLater(long lsn, long maxDelayMillis) {
+        if (durable >= lsn) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (lazyRequested < lsn) {
+                lazyRequested = lsn;
+            }
+            lazyDeadline = Math.min(lazyDeadline, System.nanoTime() + maxDelayMillis * 1000000);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (flushLock) {
+                if (running && forceRequested <= durable) {
+                    long wait = WRITER_IDLE_MILLIS;
+                    if (lazyDeadline != Long.MAX_VALUE) {
+                        wait = Math.max(1, Math.min(wait, (lazyDeadline - System.nanoTime()) / 1000000));
+                    }
+                    try {
+                        flushLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        // drain and check running
+                    }
+                }
+            }
+            try {
+                drain();
+            } catch (IOException e) {
+                synchronized (flushLock) {
+                    failure = e;
+                    flushLock.notifyAll();
+                }
+                return;
+            }
+            if (!running && published.get() == written) {
+                synchronized (flushLock) {
+                    flushLock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /** Write the published part of the ring and force it if asked to. */
+    private void drain() throws IOException {
+        long target;
+        synchronized (flushLock) {
+            target = forceRequested;
+            if (lazyDeadline != Long.MAX_VALUE && lazyDeadline - System.nanoTime() <= 0) {
+                target = Math.max(target, lazyRequested);
+            }
+        }
+        boolean forced = false;
+        synchronized (ioLock) {
+            long p = published.get();
+            long w = written;
+            if (p > w) {
+                int from = (int)(w % ring.length);
+                int len = (int)(p - w);
+                int first = Math.min(len, ring.length - from);
+                log.seek(w);
+                log.write(ring, from, first);
+                if (first < len) {
+                    log.write(ring, 0, len - first);
+                }
+                written = w = p;
+            }
+            if ((target > durable || !running) && w > durable) {
+                log.force();
+                durable = w;
+                forced = true;
+            }
+        }
+        if (forced) {
+            synchronized (flushLock) {
+                if (durable >= lazyRequested) {
+                    lazyDeadline = Long.MAX_VALUE;
+                }
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Restart the log at lsn.  Must not run concurrently with appends.
+     */
+    void reset(long lsn) {
+        synchronized (ioLock) {
+            tail.set(lsn);
+            published.set(lsn);
+            written = lsn;
+            durable = lsn;
+            log.seek(lsn);
+        }
+        synchronized (flushLock) {
+            forceRequested = lsn;
+            lazyRequested = lsn;
+            lazyDeadline = Long.MAX_VALUE;
+        }
+    }
+
+    /** Delete every segment and restart the log at LSN 0.  Must not run
+        concurrently with appends. */
+    void resetSegments() throws IOException {
+        synchronized (ioLock) {
+            log.reset();
+        }
+        reset(0);
+    }
+
+    /** Cut the segments at lsn; see LogSegments.setLength.  Must not run
+        concurrently with appends. */
+    void setLength(long lsn) throws IOException {
+        synchronized (ioLock) {
+            log.setLength(lsn);
+        }
+    }
+
+    /** Drop the segments before lsn; see LogSegments.truncateBefore. */
+    int truncateBefore(long lsn) throws IOException {
+        synchronized (ioLock) {
+            return log.truncateBefore(lsn);
+        }
+    }
+
+    /** Write and force everything appended, stop the writer and close the
+        segments. */
+    public void close() throws IOException {
+        running = false;
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted closing the log");
+        }
+        synchronized (ioLock) {
+            log.close();
+        }
+    }
+}
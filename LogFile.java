@@ -3,7 +3,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,59 +40,234 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a sequence of log records stored in fixed size segment
+files, see LogSegments.  Records are addressed by LSN, their byte
+position in the log as a whole; LSNs never change, so dropping the front
+of the log only deletes or recycles segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The file the LogFile is created with is the control file.  It holds
+a single long integer, the LSN of the last written checkpoint, or -1 if
+there are no checkpoints
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Log records are variable length, and may span segments.  They are
+appended through a LogBuffer: threads reserve and fill their records in a
+ring buffer without taking this log's monitor, and a writer thread writes
+them out in order and forces them for committing transactions.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record begins with a fixed header: a byte type, a long
+integer transaction id, an integer length of the payload that follows,
+and an integer CRC32 of the type, transaction id, length and payload.
+Scans skip records by their length, and recovery takes a record whose
+checksum does not match for the torn end of the log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.  A recycled segment
+still holds records from its previous life; their checksums match but
+their trailing LSNs do not, so they too end the log.
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> ABORT, COMMIT, and BEGIN records have an empty payload
+
+<li>UPDATE RECORDS have a PageDelta as payload: the serialized id of
+the page (see PageType.writePageId()), a byte kind, an integer count of
+changes and, for each change, an integer slot number or byte offset
+followed by the before and after bytes, each an integer length (-1 for
+an empty heap slot) and the bytes themselves.  See PageDelta.write().
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  Checkpoints are fuzzy: the buffer pool is
+not flushed, so the record is followed by the dirty page table, an integer
+count of dirty pages and, for each one, its serialized page id (see
+PageType.writePageId()) and a long integer offset of the log at the time
+the page was first dirtied.
+
+<li> CLR (compensation) records are written when an update is rolled
+back.  They consist of the inverse of the compensated update's
+PageDelta, in the same format as UPDATE records, and the long integer
+offset of the UPDATE record they compensate.  Recovery redoes them like
+updates and never undoes them, so a rollback interrupted by a crash is
+not repeated.
 
 </ul>
 
+<p> Recovery follows ARIES: analysis rebuilds the active transactions and
+the dirty page table from the last checkpoint forward; redo repeats
+history for every page in the dirty page table; undo rolls back the
+transactions that never finished, logging CLRs, and ends them with ABORT
+records.  Deltas only ever set bytes, so they can be applied to a page
+whatever version of it reached the disk; redo only needs the records of
+each page in log order, and pages are redone in parallel, partitioned by
+PageId across worker threads.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    private final LogBuffer buffer;
+    // reader for the scans done under this log's monitor; the segments
+    // are written by the buffer's writer thread
+    private final LogSegments log;
+    private final RandomAccessFile control;
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** Size of the type, transaction id, length and checksum that start
+        every record */
+    final static int HEADER_SIZE = 1 + LONG_SIZE + INT_SIZE + INT_SIZE;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>(); //protected by this
+
+    /** Don't bother truncating from the periodic checkpointer until at
+        least this many bytes of log can be reclaimed. */
+    static final long TRUNCATE_THRESHOLD = 1 << 20;
+
+    private Timer checkpointer = null; //protected by this
+
+    // LSNs before which online backups need the log kept, see retainLog
+    private final List<Long> retained = new ArrayList<Long>(); //protected by this
+
+    /** Default bound on the time before an asynchronous commit is forced */
+    public static final long DEFAULT_ASYNC_COMMIT_DELAY = 10;
+
+    private volatile Transaction.Durability defaultDurability = Transaction.Durability.SYNC;
+    private volatile long asyncCommitDelay = DEFAULT_ASYNC_COMMIT_DELAY;
+
+    // records are built in a per-thread builder and appended in one call
+    private final ThreadLocal<RecordBuilder> builders = new ThreadLocal<RecordBuilder>() {
+        protected RecordBuilder initialValue() {
+            return new RecordBuilder();
+        }
+    };
+    private final LogRecord scan = new LogRecord(); //protected by this
+
+    /** A ByteArrayOutputStream whose buffer can be patched and written
+        without copying it. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** The buffer, stream and checksum a thread builds its records with. */
+    private static class RecordBuilder {
+        final RecordBuffer record = new RecordBuffer();
+        final DataOutputStream out = new DataOutputStream(record);
+        final CRC32 crc = new CRC32();
+    }
+
+    /** A ByteArrayInputStream that can be pointed at another buffer. */
+    private static class PayloadStream extends ByteArrayInputStream {
+        PayloadStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] b, int length) {
+            buf = b;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+
+    /** A log record read back from a file.  The header is read on its own
+        so scans can skip records by their length; the payload is read in
+        one call when it is needed.  Instances are reused from record to
+        record, so a scan does not allocate per record. */
+    static class LogRecord {
+        int type;
+        long tid;
+        int length;
+        long start;
+        private int checksum;
+
+        private final byte[] header = new byte[HEADER_SIZE];
+        private byte[] payload = new byte[256];
+        private final PayloadStream payloadStream = new PayloadStream();
+        private final DataInputStream in = new DataInputStream(payloadStream);
+        private final CRC32 crc = new CRC32();
+
+        /** Read the header of the record at the file's position. */
+        void readHeader(LogSegments f) throws IOException {
+            start = f.getFilePointer();
+            f.readFully(header, 0, HEADER_SIZE);
+            type = header[0];
+            tid = getLong(header, 1);
+            length = getInt(header, 1 + LONG_SIZE);
+            checksum = getInt(header, 1 + LONG_SIZE + INT_SIZE);
+        }
+
+        /** Read the payload and trailer of the record whose header was
+            just read, leaving the file at the next record.
+            @return false if the record is torn, its checksum does not
+            match or it is left over in a recycled segment */
+        boolean readPayload(LogSegments f) throws IOException {
+            if (length < 0 || length > Integer.MAX_VALUE - LONG_SIZE) {
+                return false;
+            }
+            if (payload.length < length + LONG_SIZE) {
+                if (f.getFilePointer() + length + LONG_SIZE > f.length()) {
+                    return false;
+                }
+                payload = new byte[Math.max(length + LONG_SIZE, payload.length * 2)];
+            }
+            f.readFully(payload, 0, length + LONG_SIZE);
+            payloadStream.reset(payload, length);
+            return LogFile.checksum(crc, header, 0, payload, 0, length) == checksum
+                && getLong(payload, length) == start;
+        }
+
+        /** Read the payload of the record whose header was just read.
+            @return the payload
+            @throws IOException if the record is corrupt */
+        DataInput payload(LogSegments f) throws IOException {
+            if (!readPayload(f)) {
+                throw new IOException("corrupt log record at offset " + start);
+            }
+            return in;
+        }
+
+        /** @return the payload read by readPayload */
+        DataInput in() {
+            return in;
+        }
+
+        /** @return the bytes of the payload read by readPayload */
+        byte[] payloadBytes() {
+            return payload;
+        }
+
+        /** @return the offset of the record that follows this one */
+        long end() {
+            return start + HEADER_SIZE + length + LONG_SIZE;
+        }
+
+        /** Position the file at the record that follows this one. */
+        void skip(LogSegments f) throws IOException {
+            f.seek(end());
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,8 +281,19 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name; the log's control file
+        @param segmentSize The size of each segment file, in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        LogSegments segments = new LogSegments(f, segmentSize, false);
+        log = segments.openReader();
+        buffer = new LogBuffer(segments, LogBuffer.DEFAULT_CAPACITY);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -124,21 +311,133 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    buffer.resetSegments();
+                    log.close();
+                    control.setLength(LONG_SIZE);
+                    setCheckpointLsn(NO_CHECKPOINT_ID);
+                    recoveryUndecided = false;
+                }
+            }
+        }
+    }
+
+    /** @return the LSN of the last checkpoint, from the control file */
+    long getCheckpointLsn() throws IOException {
+        if (control.length() < LONG_SIZE) {
+            return NO_CHECKPOINT_ID;
         }
+        control.seek(0);
+        return control.readLong();
+    }
+
+    /** @return the size of the log's segment files */
+    long getSegmentSize() {
+        return log.getSegmentSize();
+    }
+
+    private void setCheckpointLsn(long lsn) throws IOException {
+        control.seek(0);
+        control.writeLong(lsn);
+        control.getChannel().force(true);
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** @return the durability new transactions start with */
+    public Transaction.Durability getDefaultDurability() {
+        return defaultDurability;
     }
-    
+
+    /** Set the durability new transactions start with, for every
+        transaction of this database that does not set its own. */
+    public void setDefaultDurability(Transaction.Durability durability) {
+        defaultDurability = durability;
+    }
+
+    /** @return the bound, in milliseconds, on the time between an
+        asynchronous commit and the force of its COMMIT record */
+    public long getAsyncCommitDelay() {
+        return asyncCommitDelay;
+    }
+
+    public void setAsyncCommitDelay(long millis) {
+        asyncCommitDelay = millis;
+    }
+
+    /** @return the offset up to which the log is on disk */
+    public long getDurableOffset() {
+        return buffer.getDurableLsn();
+    }
+
+    /** Start building a record in the calling thread's builder.
+        @return the stream its payload is written to */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        RecordBuilder b = builders.get();
+        b.record.reset();
+        b.out.writeByte(type);
+        b.out.writeLong(tid);
+        b.out.writeInt(0); // length and checksum, see appendRecord
+        b.out.writeInt(0);
+        return b.out;
+    }
+
+    /** Append the record being built by the calling thread at the end of
+        the log, filling in its length and checksum.  Its trailing start
+        offset is filled in by the buffer once space is reserved.
+        @return the offset the record starts at
+    */
+    private long appendRecord() throws IOException {
+        RecordBuilder rb = builders.get();
+        rb.out.writeLong(0);
+        byte[] b = rb.record.buffer();
+        int length = rb.record.size() - HEADER_SIZE - LONG_SIZE;
+        putInt(b, 1 + LONG_SIZE, length);
+        putInt(b, 1 + LONG_SIZE + INT_SIZE, checksum(rb.crc, b, 0, b, HEADER_SIZE, length));
+        return buffer.append(b, rb.record.size());
+    }
+
+    /** Wait until the record at start is on disk. */
+    private void forceRecord(long start) throws IOException {
+        buffer.flush(start + 1);
+    }
+
+    /** @return the CRC32 of a record's type, transaction id and length,
+        which start its header, and its payload */
+    static int checksum(CRC32 crc, byte[] header, int headerOffset,
+                        byte[] payload, int payloadOffset, int length) {
+        crc.reset();
+        crc.update(header, headerOffset, 1 + LONG_SIZE + INT_SIZE);
+        crc.update(payload, payloadOffset, length);
+        return (int)crc.getValue();
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    static long getLong(byte[] b, int off) {
+        return ((long)getInt(b, off) << 32) | (getInt(b, off + INT_SIZE) & 0xffffffffL);
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int)(v >>> 32));
+        putInt(b, off + INT_SIZE, (int)v);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,11 +457,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                beginRecord(ABORT_RECORD, tid.getId());
+                forceRecord(appendRecord());
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
@@ -170,129 +466,75 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        @param tid The committing transaction.
+    */
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, Transaction.Durability.SYNC);
+    }
+
+    /** Write a commit record for the specified tid.  A SYNC commit
+        forces the log to disk before returning; an ASYNC commit returns
+        once the record is appended, and the log writer forces it within
+        getAsyncCommitDelay() milliseconds.  The monitor is only held while the
+        record is appended, so that checkpoints see the transaction either
+        active or committed; the force is shared with any other
+        transactions committing meanwhile.
 
         @param tid The committing transaction.
+        @param durability When to return relative to the force
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid, Transaction.Durability durability)
+        throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        long start;
+        synchronized (this) {
+            beginRecord(COMMIT_RECORD, tid.getId());
+            start = appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        if (durability == Transaction.Durability.ASYNC) {
+            buffer.flushLater(start + 1, asyncCommitDelay);
+        } else {
+            forceRecord(start);
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        PageDelta between the two images is logged; nothing is logged if
+        they are equal.  Takes no lock: concurrent updates reserve their
+        space in the log buffer atomically.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before,
+                         Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        PageDelta delta = PageDelta.diff(after.getId(), before.getPageData(), after.getPageData());
+        if (delta.isEmpty()) {
+            return;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        delta.write(beginRecord(UPDATE_RECORD, tid.getId()));
+        long start = appendRecord();
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        Debug.log("WRITE OFFSET = " + start);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Return the offset at which the next log record will be written. */
+    public long getCurrentOffset() {
+        if (recoveryUndecided) {
+            // nothing appended yet; the first record will start the log
+            // once it is reset by preAppend()
+            return 0;
         }
-        return newPage;
-
+        return buffer.getTail();
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +549,190 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        long start = appendRecord();
+        tidToFirstLogRecord.put(tid.getId(), start);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + start);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** Write a fuzzy checkpoint record.  The record holds the active
+        transactions and the buffer pool's dirty page table; pages are
+        not flushed inline, so transactions keep running while the
+        checkpoint is taken.
+        @return the dirty page table recorded in the checkpoint, for the
+        background writer to flush afterwards
+    */
+    public synchronized Map<PageId,Long> logCheckpoint() throws IOException {
+        preAppend();
+        Map<PageId,Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        DataOutputStream recordOut = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        recordOut.writeInt(keys.size());
+        for (Long key : keys) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            recordOut.writeLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+            recordOut.writeLong(tidToFirstLogRecord.get(key));
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        //write the dirty page table
+        recordOut.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            PageType.writePageId(recordOut, e.getKey());
+            recordOut.writeLong(e.getValue());
         }
+        long startCpOffset = appendRecord();
 
-        logTruncate();
+        //once the CP is written, make sure the CP location at the
+        // beginning of the log file is updated
+        forceRecord(startCpOffset);
+        setCheckpointLsn(startCpOffset);
+        return dirtyPages;
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Take a fuzzy checkpoint, let the background writer flush the pages
+        it recorded, and truncate the log if enough of it can be
+        reclaimed.  Run periodically by the checkpointer thread. */
+    void runCheckpoint() throws IOException {
+        Map<PageId,Long> dirtyPages = logCheckpoint();
+        Database.getBufferPool().flushCheckpointedPages(dirtyPages.keySet());
+        if (getTruncatableBytes() >= TRUNCATE_THRESHOLD) {
+            logTruncate();
+        }
+    }
+
+    /** Start taking checkpoints every periodMillis milliseconds on a
+        background thread.
+        @param periodMillis The time between two checkpoints
+    */
+    public synchronized void startCheckpointer(long periodMillis) {
+        stopCheckpointer();
+        checkpointer = new Timer("simpledb-checkpointer", true);
+        checkpointer.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        runCheckpoint();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, periodMillis, periodMillis);
+    }
 
+    /** Stop the periodic checkpointer, if one is running. */
+    public synchronized void stopCheckpointer() {
+        if (checkpointer != null) {
+            checkpointer.cancel();
+            checkpointer = null;
+        }
+    }
+
+    /** Return the offset of the oldest record that the last checkpoint
+        still needs: the first record of any transaction active at the
+        checkpoint, or the first dirtying of any page in its dirty page
+        table.  Returns the checkpoint offset itself if neither exists, or
+        NO_CHECKPOINT_ID if there is no checkpoint.
+        Leaves the file pointer undefined. */
+    long getMinNeededOffset() throws IOException {
+        long cpLoc = getCheckpointLsn();
+
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return NO_CHECKPOINT_ID;
+        }
+        return minNeededOffset(readCheckpoint(cpLoc), cpLoc);
+    }
+
+    /** Return the offset of the oldest record a checkpoint still needs,
+        see getMinNeededOffset().
+        @param in the payload of the checkpoint record
+        @param cpLoc the offset of the checkpoint record
+    */
+    static long minNeededOffset(DataInput in, long cpLoc) throws IOException {
         long minLogRecord = cpLoc;
+        int numOutstanding = in.readInt();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
+        }
 
-            int numOutstanding = raf.readInt();
+        int numDirty = in.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (int i = 0; i < numDirty; i++) {
+            PageType.readPageId(in);
+            long recOffset = in.readLong();
+            if (recOffset < minLogRecord) {
+                minLogRecord = recOffset;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        return minLogRecord;
+    }
 
-        raf.seek(minLogRecord);
+    /** Read the checkpoint record at cpLoc.
+        @return the payload of the record
+    */
+    private DataInput readCheckpoint(long cpLoc) throws IOException {
+        log.seek(cpLoc);
+        scan.readHeader(log);
+        if (scan.type != CHECKPOINT_RECORD) {
+            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return scan.payload(log);
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** Keep the log from lsn on, whatever checkpoints are taken, until
+        releaseLog(lsn) is called.  Used by OnlineBackup to keep the
+        records its copy of the table files needs. */
+    synchronized void retainLog(long lsn) {
+        retained.add(lsn);
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    synchronized void releaseLog(long lsn) {
+        retained.remove(Long.valueOf(lsn));
+    }
 
-            } catch (EOFException e) {
-                break;
+    /** Return the offset before which the log may be dropped: the oldest
+        record the last checkpoint or a retainLog() caller still needs, or
+        NO_CHECKPOINT_ID if there is no checkpoint. */
+    private long getTruncationOffset() throws IOException {
+        long minLogRecord = getMinNeededOffset();
+        if (minLogRecord != NO_CHECKPOINT_ID) {
+            for (Long lsn : retained) {
+                minLogRecord = Math.min(minLogRecord, lsn);
             }
         }
+        return minLogRecord;
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Return the number of bytes logTruncate() would currently reclaim. */
+    synchronized long getTruncatableBytes() throws IOException {
+        preAppend();
+        long minLogRecord = getTruncationOffset();
+        if (minLogRecord == NO_CHECKPOINT_ID) {
+            return 0;
+        }
+        return Math.max(0, minLogRecord - log.getFirstLsn());
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  LSNs do not change, so this only drops the
+        segments that end before the oldest record still needed. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        long minLogRecord = getTruncationOffset();
+        if (minLogRecord != NO_CHECKPOINT_ID) {
+            int dropped = buffer.truncateBefore(minLogRecord);
+            log.close();
+            Debug.log("TRUNCATING LOG; DROPPED " + dropped + " SEGMENTS BEFORE " + minLogRecord);
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,24 +749,107 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+
+                // find the transaction's updates, newest first
+                LinkedList<Long> updates = new LinkedList<Long>();
+                long end = buffer.getTail();
+                buffer.flush(end);
+                log.seek(firstRecord);
+                while (log.getFilePointer() < end) {
+                    scan.readHeader(log);
+                    if (scan.type == UPDATE_RECORD && scan.tid == tid.getId()) {
+                        updates.addFirst(scan.start);
+                    }
+                    scan.skip(log);
+                }
+
+                undoUpdates(updates);
             }
         }
     }
 
+    /** Undo the given UPDATE records, newest first: log a CLR for each,
+        force the log, then undo the deltas on the pages on disk and drop
+        the pages from the buffer pool.  Caller holds the buffer pool's and this log's monitors.
+        @param offsets offsets of the UPDATE records, newest first
+    */
+    private void undoUpdates(List<Long> offsets) throws IOException {
+        ArrayList<PageDelta> compensations = new ArrayList<PageDelta>();
+        ArrayList<Long> tids = new ArrayList<Long>();
+        for (Long offset : offsets) {
+            log.seek(offset);
+            scan.readHeader(log);
+            tids.add(scan.tid);
+            compensations.add(PageDelta.read(scan.payload(log)).inverse());
+        }
+
+        for (int i = 0; i < compensations.size(); i++) {
+            DataOutputStream recordOut = beginRecord(CLR_RECORD, tids.get(i));
+            compensations.get(i).write(recordOut);
+            recordOut.writeLong(offsets.get(i));
+            appendRecord();
+        }
+        force();
+
+        HashMap<PageId,byte[]> pages = new HashMap<PageId,byte[]>();
+        for (PageDelta d : compensations) {
+            byte[] data = pages.get(d.getPageId());
+            if (data == null) {
+                Database.getBufferPool().flushCommitted(d.getPageId());
+                data = readPageBytes(d.getPageId());
+            }
+            pages.put(d.getPageId(), d.redo(data));
+        }
+        for (Map.Entry<PageId,byte[]> e : pages.entrySet()) {
+            writePageBytes(e.getKey(), e.getValue());
+            Database.getBufferPool().discardPage(e.getKey());
+        }
+    }
+
+    /** @return the serialized page as it is on disk, or an empty page if
+        it was never written */
+    static byte[] readPageBytes(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[BufferPool.getPageSize()];
+        }
+    }
+
+    static void writePageBytes(PageId pid, byte[] data) throws IOException {
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(PageType.newPage(pid, data));
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
     public synchronized void shutdown() {
         try {
+            stopCheckpointer();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            logTruncate();
+            close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Stop the checkpointer and the log writer and close the log's
+        files, writing and forcing whatever was appended but without a
+        checkpoint.  The log must not be used afterwards. */
+    synchronized void close() throws IOException {
+        stopCheckpointer();
+        buffer.close();
+        log.close();
+        control.close();
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
@@ -494,17 +859,207 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (log.segmentNumbers().isEmpty()) {
+                    setCheckpointLsn(NO_CHECKPOINT_ID);
+                    buffer.reset(0);
+                    return;
+                }
+
+                // analysis: active transactions and dirty pages at the crash
+                HashMap<Long,Long> active = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                long cpLoc = getCheckpointLsn();
+                long end = log.getFirstLsn();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    DataInput in = readCheckpoint(cpLoc);
+                    int numXactions = in.readInt();
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        active.put(xid, in.readLong());
+                    }
+                    int numDirty = in.readInt();
+                    while (numDirty-- > 0) {
+                        PageId pid = PageType.readPageId(in);
+                        dirtyPages.put(pid, in.readLong());
+                    }
+                    end = scan.end();
+                }
+
+                log.seek(end);
+                try {
+                    while (true) {
+                        scan.readHeader(log);
+                        if (!scan.readPayload(log)) {
+                            break;
+                        }
+                        switch (scan.type) {
+                        case BEGIN_RECORD:
+                            active.put(scan.tid, scan.start);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            active.remove(scan.tid);
+                            break;
+                        case UPDATE_RECORD:
+                        case CLR_RECORD:
+                            PageId pid = PageType.readPageId(scan.in());
+                            if (!dirtyPages.containsKey(pid)) {
+                                dirtyPages.put(pid, scan.start);
+                            }
+                            break;
+                        }
+                        end = scan.end();
+                    }
+                } catch (EOFException e) {
+                    // end of the log
+                }
+                // drop a record torn by the crash
+                buffer.setLength(end);
+                buffer.reset(end);
+                log.close();
+
+                redo(dirtyPages, end);
+
+                // undo: roll back the losers, newest update first
+                if (!active.isEmpty()) {
+                    long stop = Collections.min(active.values());
+                    HashMap<Long,Long> compensatedFrom = new HashMap<Long,Long>();
+                    LinkedList<Long> updates = new LinkedList<Long>();
+                    long pos = end;
+                    while (pos > stop) {
+                        log.seek(pos - LONG_SIZE);
+                        long start = log.readLong();
+                        log.seek(start);
+                        scan.readHeader(log);
+                        if (active.containsKey(scan.tid)) {
+                            if (scan.type == CLR_RECORD) {
+                                DataInput in = scan.payload(log);
+                                in.skipBytes(scan.length - LONG_SIZE);
+                                long undoNext = in.readLong();
+                                Long from = compensatedFrom.get(scan.tid);
+                                compensatedFrom.put(scan.tid, from == null ? undoNext : Math.min(from, undoNext));
+                            } else if (scan.type == UPDATE_RECORD) {
+                                Long from = compensatedFrom.get(scan.tid);
+                                if (from == null || start < from) {
+                                    updates.addLast(start);
+                                }
+                            }
+                        }
+                        pos = start;
+                    }
+                    undoUpdates(updates);
+
+                    for (Long xid : active.keySet()) {
+                        beginRecord(ABORT_RECORD, xid);
+                        appendRecord();
+                    }
+                    force();
+                }
+
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
+    /** Redo phase of recovery.  For each page in the dirty page table,
+        applies the deltas logged for it at or after its recovery offset,
+        in log order, to the page on disk.  Pages are partitioned by PageId
+        across one worker per processor, each reading the log through its
+        own file handle.
+        Caller holds the buffer pool's and this log's monitors.
+        @param dirtyPages page id -> offset of the first record that may
+        not be reflected on disk
+        @param end the end of the log
+    */
+    private void redo(Map<PageId,Long> dirtyPages, long end) throws IOException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+
+        // find the records of each page that needs redo
+        final HashMap<PageId,List<Long>> records = new HashMap<PageId,List<Long>>();
+        log.seek(Collections.min(dirtyPages.values()));
+        while (log.getFilePointer() < end) {
+            scan.readHeader(log);
+            if (scan.type == UPDATE_RECORD || scan.type == CLR_RECORD) {
+                PageId pid = PageType.readPageId(scan.payload(log));
+                Long recOffset = dirtyPages.get(pid);
+                if (recOffset != null && scan.start >= recOffset) {
+                    List<Long> l = records.get(pid);
+                    if (l == null) {
+                        l = new ArrayList<Long>();
+                        records.put(pid, l);
+                    }
+                    l.add(scan.start);
+                }
+            }
+            log.seek(scan.end());
+        }
+
+        int numWorkers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), records.size()));
+        final List<List<Map.Entry<PageId,List<Long>>>> partitions = new ArrayList<List<Map.Entry<PageId,List<Long>>>>();
+        for (int i = 0; i < numWorkers; i++) {
+            partitions.add(new ArrayList<Map.Entry<PageId,List<Long>>>());
+        }
+        for (Map.Entry<PageId,List<Long>> e : records.entrySet()) {
+            partitions.get((e.getKey().hashCode() & Integer.MAX_VALUE) % numWorkers).add(e);
+        }
+
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread[] workers = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final List<Map.Entry<PageId,List<Long>>> pages = partitions.get(i);
+            workers[i] = new Thread("simpledb-redo-" + i) {
+                public void run() {
+                    try {
+                        LogSegments in = log.openReader();
+                        LogRecord r = new LogRecord();
+                        try {
+                            for (Map.Entry<PageId,List<Long>> e : pages) {
+                                byte[] data = readPageBytes(e.getKey());
+                                for (Long offset : e.getValue()) {
+                                    in.seek(offset);
+                                    r.readHeader(in);
+                                    data = PageDelta.read(r.payload(in)).redo(data);
+                                }
+                                writePageBytes(e.getKey(), data);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted during redo");
+            }
+        }
+        if (!failures.isEmpty()) {
+            IOException e = new IOException("redo failed");
+            e.initCause(failures.get(0));
+            throw e;
+        }
+
+        for (PageId pid : records.keySet()) {
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Wait until every record appended so far is on disk. */
+    public void force() throws IOException {
+        buffer.flush(buffer.getTail());
     }
 
 }
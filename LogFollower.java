@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads a write ahead log as it grows and hands out the updates of each
+ * transaction once its COMMIT record is read; the updates of aborted
+ * transactions, including the CLRs of their rollback, are dropped.  Used by
+ * LogReplica and ChangeFeed to follow another process's log through its
+ * segment files.
+ * <p>
+ * A record that is incomplete, torn or left over in a recycled segment is
+ * taken for the current end of the log and read again on the next call.
+ * <p>
+ * Not thread safe.
+ */
+class LogFollower {
+
+    /** Receives the updates of each committed transaction, in commit order. */
+    interface Sink {
+        /**
+         * @param tid the transaction
+         * @param commitLsn the LSN of its COMMIT record
+         * @param restartLsn the LSN a follower created with this
+         *   commitLsn may start at to deliver the commits after this one
+         * @param deltas its updates, in log order
+         */
+        void commit(long tid, long commitLsn, long restartLsn, List<PageDelta> deltas)
+            throws IOException, InterruptedException;
+    }
+
+    private final LogSegments log;
+    private final LogFile.LogRecord r = new LogFile.LogRecord();
+
+    // primary tid -> updates read so far, in log order
+    private final HashMap<Long, List<PageDelta>> pending = new HashMap<Long, List<PageDelta>>();
+    // primary tid -> LSN of its first update read
+    private final HashMap<Long, Long> firstUpdate = new HashMap<Long, Long>();
+    private long position;
+    private long lastCommitLsn;
+
+    /**
+     * @param logFile the log's file name, as given to its LogFile
+     * @param segmentSize the size of the log's segments
+     * @param from the LSN to start reading at
+     * @param lastCommitLsn transactions whose COMMIT record is at or before
+     *   this LSN are not delivered again; -1 to deliver every commit
+     */
+    LogFollower(File logFile, long segmentSize, long from, long lastCommitLsn) {
+        this.log = new LogSegments(logFile, segmentSize, true);
+        this.position = from;
+        this.lastCommitLsn = lastCommitLsn;
+    }
+
+    /** @return the LSN of the next record to read */
+    long getPosition() {
+        return position;
+    }
+
+    /** @return the LSN of the COMMIT record last delivered, or the one
+        the follower was created with */
+    long getLastCommitLsn() {
+        return lastCommitLsn;
+    }
+
+    /**
+     * Return an LSN that a new follower may start reading at, together
+     * with getLastCommitLsn(), to deliver exactly the commits this one has
+     * not delivered yet: the first update of any transaction still
+     * pending, or else the current position.
+     */
+    long getRestartLsn() {
+        long lsn = position;
+        for (Long first : firstUpdate.values()) {
+            lsn = Math.min(lsn, first);
+        }
+        return lsn;
+    }
+
+    /**
+     * Read the records available, delivering each committed transaction
+     * to sink.
+     *
+     * @param maxRecords the most records to read in this call
+     * @return true if the end of the log was reached
+     * @throws IOException if the log was truncated past the position
+     */
+    boolean readAvailable(Sink sink, int maxRecords) throws IOException, InterruptedException {
+        for (int n = 0; n < maxRecords; n++) {
+            log.seek(position);
+            boolean complete;
+            try {
+                r.readHeader(log);
+                complete = r.readPayload(log);
+            } catch (EOFException e) {
+                complete = false;
+            }
+            if (!complete) {
+                if (position < log.getFirstLsn()) {
+                    throw new IOException("log truncated past LSN " + position);
+                }
+                log.close(); // segments may be recycled; reopen them by name
+                return true;
+            }
+
+            switch (r.type) {
+            case LogFile.UPDATE_RECORD:
+            case LogFile.CLR_RECORD:
+                List<PageDelta> l = pending.get(r.tid);
+                if (l == null) {
+                    l = new ArrayList<PageDelta>();
+                    pending.put(r.tid, l);
+                    firstUpdate.put(r.tid, r.start);
+                }
+                l.add(PageDelta.read(r.in()));
+                break;
+            case LogFile.COMMIT_RECORD:
+                // a sink that throws sees the same commit again next call
+                List<PageDelta> committed = pending.get(r.tid);
+                if (committed != null && r.start > lastCommitLsn) {
+                    long restart = r.end();
+                    for (Map.Entry<Long, Long> e : firstUpdate.entrySet()) {
+                        if (e.getKey() != r.tid) {
+                            restart = Math.min(restart, e.getValue());
+                        }
+                    }
+                    sink.commit(r.tid, r.start, restart, committed);
+                    lastCommitLsn = r.start;
+                }
+                pending.remove(r.tid);
+                firstUpdate.remove(r.tid);
+                break;
+            case LogFile.ABORT_RECORD:
+                pending.remove(r.tid);
+                firstUpdate.remove(r.tid);
+                break;
+            }
+            position = r.end();
+        }
+        return false;
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,262 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LogReplica keeps a read only copy of a primary database up to date by
+ * following the primary's write ahead log.  It runs in a second SimpleDB
+ * process on the same machine, with its own catalog and its own copies of
+ * the primary's table files, and tails the primary's log segments: the
+ * updates of each transaction are collected as they are read, applied to
+ * the copies when its COMMIT record is read, and dropped when its ABORT
+ * record is read.
+ * <p>
+ * Table ids are derived from file names, so the copies have ids of their
+ * own.  The replica is given the mapping from the primary's table ids to
+ * the copies', and skips the records of tables it does not map.
+ * <p>
+ * To seed a replica, take its start LSN with seedLsn() <em>before</em>
+ * copying the primary's table files, then copy them and start the replica
+ * from that LSN.  Deltas set bytes rather than adjust them, so replaying
+ * changes the copies already hold is harmless.  The copy must be done
+ * before the primary's checkpoints truncate its log past the start LSN.
+ * <p>
+ * Each committed transaction is applied under exclusive locks on the
+ * tables it touched, so queries that run as LOCKING transactions on the
+ * replica see whole transactions.  READ_ONLY transactions take no locks
+ * and could see one half applied, so they must not be used on a replica;
+ * Parser, started with -replica, runs every query as a LOCKING
+ * transaction.  The copies must not be written locally, and the replica
+ * process must not share the primary's working directory, where Database
+ * keeps its own log.
+ */
+public class LogReplica {
+
+    /** Default time between two polls of the primary's log once caught up */
+    public static final long DEFAULT_POLL_MILLIS = 10;
+
+    /** Records read between two updates of the lag */
+    static final int BATCH_RECORDS = 1024;
+
+    private final LogFollower log; // follower thread only
+    private final Map<Integer, Integer> tableIds;
+    private final long pollMillis;
+
+    private volatile long appliedLsn;
+    private volatile long caughtUpAt = -1; // System.currentTimeMillis()
+    private volatile boolean running = false;
+    private volatile Exception failure = null;
+    private Thread follower = null;
+
+    /**
+     * @param primaryLog the primary's log file name, as given to its LogFile
+     * @param tableIds primary table id -> id of its copy on this replica
+     * @param startLsn the LSN to start replaying from, see seedLsn()
+     */
+    public LogReplica(File primaryLog, Map<Integer, Integer> tableIds, long startLsn) {
+        this(primaryLog, LogSegments.DEFAULT_SEGMENT_SIZE, tableIds, startLsn, DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * @param primaryLog the primary's log file name, as given to its LogFile
+     * @param segmentSize the size of the primary's log segments
+     * @param tableIds primary table id -> id of its copy on this replica
+     * @param startLsn the LSN to start replaying from, see seedLsn()
+     * @param pollMillis the time between two polls once caught up
+     */
+    public LogReplica(File primaryLog, long segmentSize, Map<Integer, Integer> tableIds,
+                      long startLsn, long pollMillis) {
+        this.log = new LogFollower(primaryLog, segmentSize, startLsn, -1);
+        this.tableIds = new HashMap<Integer, Integer>(tableIds);
+        this.appliedLsn = startLsn;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Map the tables of a primary to their copies on a replica by name.
+     *
+     * @param primary the primary's catalog, loaded from its catalog file
+     * @param replica the replica's catalog
+     * @return primary table id -> id of its copy, for the tables both have
+     */
+    public static Map<Integer, Integer> mapTables(Catalog primary, Catalog replica) {
+        Map<Integer, Integer> tableIds = new HashMap<Integer, Integer>();
+        Iterator<Integer> it = primary.tableIdIterator();
+        while (it.hasNext()) {
+            int id = it.next();
+            try {
+                tableIds.put(id, replica.getTableId(primary.getTableName(id)));
+            } catch (NoSuchElementException e) {
+                // not replicated
+            }
+        }
+        return tableIds;
+    }
+
+    /**
+     * Return the LSN a replica may start from if its copies of the
+     * primary's table files are taken after this call: the oldest record
+     * the primary's last checkpoint still needs.
+     *
+     * @param primaryLog the primary's log file name, as given to its LogFile
+     * @param segmentSize the size of the primary's log segments
+     */
+    public static long seedLsn(File primaryLog, long segmentSize) throws IOException {
+        long cpLoc = LogFile.NO_CHECKPOINT_ID;
+        RandomAccessFile control = new RandomAccessFile(primaryLog, "r");
+        try {
+            if (control.length() >= LogFile.LONG_SIZE) {
+                cpLoc = control.readLong();
+            }
+        } finally {
+            control.close();
+        }
+
+        LogSegments log = new LogSegments(primaryLog, segmentSize, true);
+        try {
+            if (cpLoc == LogFile.NO_CHECKPOINT_ID) {
+                return log.getFirstLsn();
+            }
+            LogFile.LogRecord r = new LogFile.LogRecord();
+            log.seek(cpLoc);
+            r.readHeader(log);
+            if (r.type != LogFile.CHECKPOINT_RECORD) {
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            }
+            return LogFile.minNeededOffset(r.payload(log), cpLoc);
+        } finally {
+            log.close();
+        }
+    }
+
+    /** Start following the primary's log on a background thread. */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        follower = new Thread("simpledb-replica") {
+            public void run() {
+                follow();
+            }
+        };
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /** Stop following the primary's log, once the transaction being
+        applied, if any, is applied. */
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        if (follower != null) {
+            follower.interrupt();
+            follower.join();
+            follower = null;
+        }
+    }
+
+    /** @return true if the replica is following the primary's log */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** @return the error that stopped the replica, or null */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /** @return the LSN of the next record to replay; every transaction
+        that committed before it is applied */
+    public long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Return the replica's lag: the time since it last reached the end of
+     * the primary's log.  Every transaction the primary had written to its
+     * log by then is applied, so the copies are at most this stale.
+     *
+     * @return the lag in milliseconds, or -1 if the replica has not caught
+     *   up since it started
+     */
+    public long getLagMillis() {
+        long t = caughtUpAt;
+        return t < 0 ? -1 : System.currentTimeMillis() - t;
+    }
+
+    private void follow() {
+        LogFollower.Sink sink = new LogFollower.Sink() {
+            public void commit(long tid, long commitLsn, long restartLsn, List<PageDelta> deltas)
+                throws IOException, InterruptedException {
+                apply(deltas);
+            }
+        };
+        try {
+            while (running) {
+                boolean atEnd = log.readAvailable(sink, BATCH_RECORDS);
+                appliedLsn = log.getPosition();
+                if (atEnd) {
+                    caughtUpAt = System.currentTimeMillis();
+                    Thread.sleep(pollMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Exception e) {
+            failure = e;
+            e.printStackTrace();
+        } finally {
+            running = false;
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Apply a committed transaction's updates to the copies of the
+        mapped tables, under exclusive locks on the copies. */
+    private void apply(List<PageDelta> committed) throws IOException, InterruptedException {
+        List<PageDelta> deltas = new ArrayList<PageDelta>();
+        TreeSet<Integer> tables = new TreeSet<Integer>();
+        for (PageDelta d : committed) {
+            Integer copy = tableIds.get(d.getPageId().getTableId());
+            if (copy != null) {
+                deltas.add(d.forTable(copy));
+                tables.add(copy);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            TransactionId tid = new TransactionId();
+            try {
+                for (Integer tableId : tables) {
+                    bp.lockTable(tid, tableId, Permissions.READ_WRITE);
+                }
+                LinkedHashMap<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>();
+                for (PageDelta d : deltas) {
+                    byte[] data = pages.get(d.getPageId());
+                    if (data == null) {
+                        data = LogFile.readPageBytes(d.getPageId());
+                    }
+                    pages.put(d.getPageId(), d.redo(data));
+                }
+                for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+                    LogFile.writePageBytes(e.getKey(), e.getValue());
+                    bp.discardPage(e.getKey());
+                }
+                return;
+            } catch (TransactionAbortedException e) {
+                // lost a deadlock to a query; try again once it is done
+                Thread.sleep(1);
+            } finally {
+                bp.transactionComplete(tid, false); // releases the locks
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the write ahead log as a sequence of fixed size segment
+ * files addressed by LSN, the byte position of a record in the log as a whole.
+ * Segment n holds LSNs [n * segmentSize, (n + 1) * segmentSize) and is named
+ * after the log with n appended as 16 hex digits, so LSNs never change and
+ * records may span segments.
+ * <p>
+ * Dropping the front of the log deletes whole segments, or renames a few of
+ * them past the end of the log to be overwritten later instead of allocating
+ * new files.  A recycled segment still holds records from its previous life;
+ * readers detect them by their checksum and trailing LSN, see
+ * LogFile.LogRecord.
+ * <p>
+ * Not thread safe: LogFile uses one instance under its monitor, and gives
+ * each concurrent reader its own through openReader().
+ */
+public class LogSegments {
+
+    /** Default size of a segment file, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Segments kept for reuse when the front of the log is dropped */
+    static final int RECYCLED_SEGMENTS = 2;
+
+    private final File base;
+    private final long segmentSize;
+    private final boolean readOnly;
+    private long position = 0;
+
+    private final TreeMap<Long, RandomAccessFile> files = new TreeMap<Long, RandomAccessFile>();
+    private final Set<Long> unforced = new HashSet<Long>();
+
+    /**
+     * @param base the log's name; segment files are named after it
+     * @param segmentSize the size of each segment, in bytes
+     * @param readOnly true if this instance only reads the log
+     */
+    public LogSegments(File base, long segmentSize, boolean readOnly) {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.readOnly = readOnly;
+    }
+
+    /** @return a new read only instance over the same segments */
+    public LogSegments openReader() {
+        return new LogSegments(base, segmentSize, true);
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the file segment n is stored in */
+    public File segmentFile(long n) {
+        return new File(base.getPath() + "." + String.format("%016x", n));
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    public List<Long> segmentNumbers() {
+        List<Long> l = new ArrayList<Long>();
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return l;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                try {
+                    l.add(Long.parseLong(name.substring(prefix.length()), 16));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(l);
+        return l;
+    }
+
+    /** @return the LSN at which segment n starts */
+    public long segmentStart(long n) {
+        return n * segmentSize;
+    }
+
+    /** @return the LSN the oldest segment on disk starts at, or 0 */
+    public long getFirstLsn() {
+        List<Long> l = segmentNumbers();
+        return l.isEmpty() ? 0 : segmentStart(l.get(0));
+    }
+
+    /** @return the LSN just past the last byte of the segments on disk.
+        Segments recycled past the end of the log are included. */
+    public long length() {
+        List<Long> l = segmentNumbers();
+        if (l.isEmpty()) {
+            return 0;
+        }
+        long last = l.get(l.size() - 1);
+        return segmentStart(last) + segmentFile(last).length();
+    }
+
+    public long getFilePointer() {
+        return position;
+    }
+
+    public void seek(long lsn) {
+        position = lsn;
+    }
+
+    private RandomAccessFile file(long n, boolean create) throws IOException {
+        RandomAccessFile f = files.get(n);
+        if (f == null) {
+            File sf = segmentFile(n);
+            if (!create && !sf.exists()) {
+                return null;
+            }
+            f = new RandomAccessFile(sf, readOnly ? "r" : "rw");
+            files.put(n, f);
+        }
+        return f;
+    }
+
+    /** Read len bytes at the current LSN, advancing it.
+        @throws EOFException if the log ends first */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = position / segmentSize;
+            long inSegment = position % segmentSize;
+            int k = (int)Math.min(len, segmentSize - inSegment);
+            RandomAccessFile f = file(n, false);
+            if (f == null || inSegment + k > f.length()) {
+                throw new EOFException();
+            }
+            f.seek(inSegment);
+            f.readFully(b, off, k);
+            position += k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    public long readLong() throws IOException {
+        byte[] b = new byte[LogFile.LONG_SIZE];
+        readFully(b, 0, b.length);
+        return LogFile.getLong(b, 0);
+    }
+
+    /** Write len bytes at the current LSN, advancing it. */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = position / segmentSize;
+            long inSegment = position % segmentSize;
+            int k = (int)Math.min(len, segmentSize - inSegment);
+            RandomAccessFile f = file(n, true);
+            f.seek(inSegment);
+            f.write(b, off, k);
+            unforced.add(n);
+            position += k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    /** Force the segments written since the last force to disk. */
+    public void force() throws IOException {
+        for (Long n : unforced) {
+            RandomAccessFile f = files.get(n);
+            if (f != null) {
+                f.getChannel().force(true);
+            }
+        }
+        unforced.clear();
+    }
+
+    /** Cut the log at lsn: the segment holding it is truncated there and
+        every later segment is deleted. */
+    public void setLength(long lsn) throws IOException {
+        long n = lsn / segmentSize;
+        for (Long m : segmentNumbers()) {
+            if (m > n) {
+                delete(m);
+            }
+        }
+        RandomAccessFile f = file(n, true);
+        if (f.length() > lsn % segmentSize) {
+            f.setLength(lsn % segmentSize);
+        }
+    }
+
+    /**
+     * Drop every segment that holds only LSNs before lsn.  Up to
+     * RECYCLED_SEGMENTS of them are renamed past the last segment to be
+     * overwritten by later appends; the rest are deleted.
+     *
+     * @return the number of segments dropped
+     */
+    public int truncateBefore(long lsn) throws IOException {
+        List<Long> l = segmentNumbers();
+        if (l.isEmpty()) {
+            return 0;
+        }
+        long next = l.get(l.size() - 1) + 1;
+        int recycled = 0;
+        for (Long spare : l) {
+            if (segmentStart(spare) > position) {
+                recycled++; // already waiting past the end of the log
+            }
+        }
+
+        int dropped = 0;
+        for (Long n : l) {
+            if (segmentStart(n + 1) > lsn) {
+                break;
+            }
+            close(n);
+            if (recycled < RECYCLED_SEGMENTS && segmentFile(n).renameTo(segmentFile(next))) {
+                next++;
+                recycled++;
+            } else {
+                segmentFile(n).delete();
+            }
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /** Delete every segment. */
+    public void reset() throws IOException {
+        for (Long n : segmentNumbers()) {
+            delete(n);
+        }
+        position = 0;
+    }
+
+    private void delete(long n) throws IOException {
+        close(n);
+        segmentFile(n).delete();
+    }
+
+    private void close(long n) throws IOException {
+        RandomAccessFile f = files.remove(n);
+        unforced.remove(n);
+        if (f != null) {
+            f.close();
+        }
+    }
+
+    public void close() throws IOException {
+        Iterator<Map.Entry<Long, RandomAccessFile>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            it.next().getValue().close();
+            it.remove();
+        }
+        unforced.clear();
+    }
+}
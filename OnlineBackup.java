@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * OnlineBackup copies the table files of the catalog and the log needed to
+ * make them consistent into a backup directory, while transactions keep
+ * running.
+ * <p>
+ * A backup starts with a fuzzy checkpoint and keeps the log from the oldest
+ * record that checkpoint needs, its begin LSN.  The table files are then
+ * copied as they are, so a copy may hold pages written at any time during
+ * the copy, even torn ones; since every page write is logged first, the
+ * copy is made consistent by replaying the log from the begin LSN to the
+ * point the log had reached when the copy ended, as recovery from a crash
+ * at that point would.  The backup holds those log segments, and restore()
+ * puts everything back for recover() to replay.
+ * <p>
+ * Files are copied sequentially in large chunks, at most bytesPerSecond
+ * bytes per second if a bandwidth is given, so a backup does not starve
+ * queries of disk bandwidth.
+ * <p>
+ * Table ids are derived from the table files' paths, so a backup is
+ * restored to the paths it was taken from.  The catalog itself is not
+ * backed up.
+ */
+public class OnlineBackup {
+
+    /** Name of the file describing a backup, in its directory */
+    public static final String MANIFEST = "MANIFEST";
+
+    /** Bandwidth for an unthrottled backup */
+    public static final long UNLIMITED = 0;
+
+    /** Bytes copied between two checks of the bandwidth */
+    static final long CHUNK_SIZE = 1024 * 1024;
+
+    private final File dir;
+    private final long bytesPerSecond;
+
+    private long copied;
+    private long started;
+
+    /**
+     * @param dir the directory to back up to; created if needed, and must
+     *   not hold a backup already
+     */
+    public OnlineBackup(File dir) {
+        this(dir, UNLIMITED);
+    }
+
+    /**
+     * @param dir the directory to back up to; created if needed, and must
+     *   not hold a backup already
+     * @param bytesPerSecond the most bytes to copy per second, or UNLIMITED
+     */
+    public OnlineBackup(File dir, long bytesPerSecond) {
+        this.dir = dir;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Back up every table of the catalog.
+     *
+     * @return the LSN the backup restores the database to; every
+     *   transaction that committed before it is in the backup
+     */
+    public long run() throws IOException {
+        if (new File(dir, MANIFEST).exists()) {
+            throw new IOException("there is already a backup in " + dir);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        copied = 0;
+        started = System.currentTimeMillis();
+
+        LogFile lf = Database.getLogFile();
+        long checkpointLsn;
+        long beginLsn;
+        synchronized (lf) {
+            lf.logCheckpoint();
+            checkpointLsn = lf.getCheckpointLsn();
+            beginLsn = lf.getMinNeededOffset();
+            lf.retainLog(beginLsn);
+        }
+        try {
+            Properties manifest = new Properties();
+            manifest.setProperty("checkpointLsn", Long.toString(checkpointLsn));
+            manifest.setProperty("beginLsn", Long.toString(beginLsn));
+
+            int n = 0;
+            Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+            while (it.hasNext()) {
+                DbFile table = Database.getCatalog().getDatabaseFile(it.next());
+                File f = tableFile(table);
+                String name = n + "-" + f.getName();
+                if (table instanceof ShadowHeapFile) {
+                    // not logged: copied whole, with its commits held off
+                    synchronized (table) {
+                        copy(f, new File(dir, name), Long.MAX_VALUE, true);
+                    }
+                } else {
+                    copy(f, new File(dir, name), Long.MAX_VALUE, true);
+                }
+                manifest.setProperty("table." + n + ".path", f.getAbsolutePath());
+                manifest.setProperty("table." + n + ".file", name);
+                n++;
+            }
+            manifest.setProperty("tables", Integer.toString(n));
+
+            // every page write during the copy was logged before it
+            lf.force();
+            long endLsn = lf.getDurableOffset();
+            long segmentSize = lf.getSegmentSize();
+            LogSegments segments = new LogSegments(lf.logFile, segmentSize, true);
+            long first = beginLsn / segmentSize;
+            long last = (endLsn - 1) / segmentSize;
+            for (long s = first; s <= last; s++) {
+                File f = segments.segmentFile(s);
+                long limit = Math.min(segmentSize, endLsn - segments.segmentStart(s));
+                copy(f, new File(dir, f.getName()), limit, true);
+            }
+            manifest.setProperty("endLsn", Long.toString(endLsn));
+            manifest.setProperty("segmentSize", Long.toString(segmentSize));
+            manifest.setProperty("firstSegment", Long.toString(first));
+            manifest.setProperty("lastSegment", Long.toString(last));
+
+            // written last, so a directory with a manifest holds a whole backup
+            File tmp = new File(dir, MANIFEST + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                manifest.store(out, "SimpleDB online backup");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(dir, MANIFEST))) {
+                throw new IOException("could not write the manifest of " + dir);
+            }
+            return endLsn;
+        } finally {
+            lf.releaseLog(beginLsn);
+        }
+    }
+
+    /**
+     * Restore a backup: put its table files back where they were taken
+     * from and replace the database's log with the backup's.  Must be
+     * called before the database is used; then load the catalog and call
+     * Database.getLogFile().recover() to bring the tables to the end of the
+     * backup.
+     *
+     * @param dir the backup's directory
+     */
+    public static void restore(File dir) throws IOException {
+        Properties manifest = new Properties();
+        File mf = new File(dir, MANIFEST);
+        if (!mf.exists()) {
+            throw new IOException("no backup in " + dir);
+        }
+        FileInputStream in = new FileInputStream(mf);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        LogFile lf = Database.getLogFile();
+        if (!lf.recoveryUndecided) {
+            throw new IOException("the log is in use; restore before running transactions");
+        }
+        long segmentSize = Long.parseLong(manifest.getProperty("segmentSize"));
+        if (segmentSize != lf.getSegmentSize()) {
+            throw new IOException("backup segment size " + segmentSize
+                                  + " does not match the log's " + lf.getSegmentSize());
+        }
+
+        OnlineBackup copier = new OnlineBackup(dir);
+        int tables = Integer.parseInt(manifest.getProperty("tables"));
+        for (int i = 0; i < tables; i++) {
+            copier.copy(new File(dir, manifest.getProperty("table." + i + ".file")),
+                        new File(manifest.getProperty("table." + i + ".path")),
+                        Long.MAX_VALUE, false);
+        }
+
+        LogSegments segments = new LogSegments(lf.logFile, segmentSize, false);
+        segments.reset();
+        long first = Long.parseLong(manifest.getProperty("firstSegment"));
+        long last = Long.parseLong(manifest.getProperty("lastSegment"));
+        for (long s = first; s <= last; s++) {
+            File f = segments.segmentFile(s);
+            copier.copy(new File(dir, f.getName()), f, Long.MAX_VALUE, false);
+        }
+        RandomAccessFile control = new RandomAccessFile(lf.logFile, "rw");
+        try {
+            control.setLength(0);
+            control.writeLong(Long.parseLong(manifest.getProperty("checkpointLsn")));
+            control.getChannel().force(true);
+        } finally {
+            control.close();
+        }
+    }
+
+    /** @return the file a table is stored in */
+    private static File tableFile(DbFile f) throws IOException {
+        if (f instanceof HeapFile) {
+            return ((HeapFile)f).getFile();
+        } else if (f instanceof BTreeFile) {
+            return ((BTreeFile)f).getFile();
+        }
+        throw new IOException("cannot back up table " + f.getId() + " of type "
+                              + f.getClass().getSimpleName());
+    }
+
+    /**
+     * Copy the first limit bytes of from, or all of it if it is shorter,
+     * over to, and force to to disk.
+     *
+     * @param throttle true to stay under the backup's bandwidth
+     */
+    private void copy(File from, File to, long limit, boolean throttle) throws IOException {
+        FileChannel in = new FileInputStream(from).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(to).getChannel();
+            try {
+                long size = Math.min(limit, in.size());
+                long pos = 0;
+                while (pos < size) {
+                    long n = in.transferTo(pos, Math.min(CHUNK_SIZE, size - pos), out);
+                    if (n <= 0) {
+                        break; // the file shrank
+                    }
+                    pos += n;
+                    if (throttle) {
+                        throttle(n);
+                    }
+                }
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Sleep as long as needed to keep the copy under the bandwidth. */
+    private void throttle(long bytes) throws IOException {
+        copied += bytes;
+        if (bytesPerSecond == UNLIMITED) {
+            return;
+        }
+        long wait = started + copied * 1000 / bytesPerSecond - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted during backup");
+            }
+        }
+    }
+}
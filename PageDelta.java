@@ -0,0 +1,308 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the physiological change carried by an UPDATE log record in
+ * place of full before and after page images.  Changes to a HeapPage are
+ * logged per slot: the slot number with the tuple bytes it held before and
+ * after (null when the slot was empty), so a one-tuple insert costs one
+ * tuple.  Other pages are logged as the byte ranges that differ.
+ * <p>
+ * Applying a delta sets bytes to the values it records rather than
+ * adjusting them, so redo and undo are idempotent and may be repeated by a
+ * recovery that is itself interrupted.
+ */
+public class PageDelta {
+
+    /** Kind of a delta whose positions are heap page slots */
+    static final byte SLOTS = 1;
+    /** Kind of a delta whose positions are byte offsets in the page */
+    static final byte BYTES = 2;
+
+    /** Equal runs shorter than this are folded into one byte range */
+    private static final int MERGE_GAP = 16;
+
+    private final PageId pid;
+    private final byte kind;
+    private final int[] positions;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, byte kind, int[] positions, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.kind = kind;
+        this.positions = positions;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta that turns before into after.
+     *
+     * @param pid the page both images belong to
+     * @param before the serialized page before the change
+     * @param after the serialized page after the change
+     */
+    public static PageDelta diff(PageId pid, byte[] before, byte[] after) {
+        if (pid instanceof HeapPageId && before.length == after.length) {
+            return diffSlots(pid, before, after);
+        }
+        return diffBytes(pid, before, after);
+    }
+
+    private static PageDelta diffSlots(PageId pid, byte[] before, byte[] after) {
+        int tupleSize = tupleSize(pid);
+        int headerSize = headerSize(tupleSize);
+        int numSlots = numSlots(tupleSize);
+        List<Integer> slots = new ArrayList<Integer>();
+        List<byte[]> olds = new ArrayList<byte[]>();
+        List<byte[]> news = new ArrayList<byte[]>();
+
+        for (int i = 0; i < numSlots; i++) {
+            boolean wasUsed = isSlotUsed(before, i);
+            boolean isUsed = isSlotUsed(after, i);
+            int start = headerSize + i * tupleSize;
+            if (wasUsed == isUsed && (!isUsed || rangeEquals(before, after, start, tupleSize))) {
+                continue;
+            }
+            slots.add(i);
+            olds.add(wasUsed ? Arrays.copyOfRange(before, start, start + tupleSize) : null);
+            news.add(isUsed ? Arrays.copyOfRange(after, start, start + tupleSize) : null);
+        }
+        return build(pid, SLOTS, slots, olds, news);
+    }
+
+    private static PageDelta diffBytes(PageId pid, byte[] before, byte[] after) {
+        List<Integer> offsets = new ArrayList<Integer>();
+        List<byte[]> olds = new ArrayList<byte[]>();
+        List<byte[]> news = new ArrayList<byte[]>();
+        int len = Math.max(before.length, after.length);
+
+        int i = 0;
+        while (i < len) {
+            if (byteAt(before, i) == byteAt(after, i)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range until MERGE_GAP equal bytes in a row
+            for (int j = end; j < len && j < end + MERGE_GAP; j++) {
+                if (byteAt(before, j) != byteAt(after, j)) {
+                    end = j + 1;
+                }
+            }
+            offsets.add(start);
+            olds.add(copyRange(before, start, end));
+            news.add(copyRange(after, start, end));
+            i = end;
+        }
+        return build(pid, BYTES, offsets, olds, news);
+    }
+
+    private static PageDelta build(PageId pid, byte kind, List<Integer> positions,
+                                   List<byte[]> olds, List<byte[]> news) {
+        int[] pos = new int[positions.size()];
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] = positions.get(i);
+        }
+        return new PageDelta(pid, kind, pos,
+                             olds.toArray(new byte[pos.length][]),
+                             news.toArray(new byte[pos.length][]));
+    }
+
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return true if the positions of this delta are heap page slots */
+    public boolean isSlots() {
+        return kind == SLOTS;
+    }
+
+    /** @return true if the delta changes nothing */
+    public boolean isEmpty() {
+        return positions.length == 0;
+    }
+
+    /** @return the number of slots or byte ranges the delta changes */
+    int size() {
+        return positions.length;
+    }
+
+    /** @return the slot number or byte offset of the i-th change */
+    int position(int i) {
+        return positions[i];
+    }
+
+    /** @return the bytes of the i-th change before it, or null for an
+        empty heap slot */
+    byte[] before(int i) {
+        return before[i];
+    }
+
+    /** @return the bytes of the i-th change after it, or null for an
+        empty heap slot */
+    byte[] after(int i) {
+        return after[i];
+    }
+
+    /** @return the same delta applied to the page with this delta's page
+        number in another table, such as a copy of this delta's table */
+    public PageDelta forTable(int tableId) {
+        return new PageDelta(PageType.withTableId(pid, tableId), kind, positions, before, after);
+    }
+
+    /** @return the delta that undoes this one */
+    public PageDelta inverse() {
+        return new PageDelta(pid, kind, positions, after, before);
+    }
+
+    /** Apply the delta to the serialized page, in place.
+        @return the page data, grown if the delta reaches past its end */
+    public byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /** Undo the delta on the serialized page, in place.
+        @return the page data, grown if the delta reaches past its end */
+    public byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] values) {
+        if (kind == SLOTS) {
+            int tupleSize = tupleSize(pid);
+            int headerSize = headerSize(tupleSize);
+            for (int i = 0; i < positions.length; i++) {
+                int slot = positions[i];
+                int start = headerSize + slot * tupleSize;
+                if (values[i] == null) {
+                    data[slot / 8] &= ~(1 << (slot % 8));
+                    Arrays.fill(data, start, start + tupleSize, (byte)0);
+                } else {
+                    data[slot / 8] |= (1 << (slot % 8));
+                    System.arraycopy(values[i], 0, data, start, tupleSize);
+                }
+            }
+            return data;
+        }
+
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] + values[i].length > data.length) {
+                data = Arrays.copyOf(data, positions[i] + values[i].length);
+            }
+            System.arraycopy(values[i], 0, data, positions[i], values[i].length);
+        }
+        return data;
+    }
+
+    /** Write the delta to a log record's payload. */
+    void write(DataOutput out) throws IOException {
+        PageType.writePageId(out, pid);
+        out.writeByte(kind);
+        out.writeInt(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            out.writeInt(positions[i]);
+            writeBytes(out, before[i]);
+            writeBytes(out, after[i]);
+        }
+    }
+
+    /** Read a delta written by write. */
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = PageType.readPageId(in);
+        byte kind = in.readByte();
+        int n = in.readInt();
+        int[] positions = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            positions[i] = in.readInt();
+            before[i] = readBytes(in);
+            after[i] = readBytes(in);
+        }
+        return new PageDelta(pid, kind, positions, before, after);
+    }
+
+    /** Skip a delta written by write, returning the id of its page. */
+    static PageId skip(DataInput in) throws IOException {
+        PageId pid = PageType.readPageId(in);
+        in.readByte();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            in.readInt();
+            for (int k = 0; k < 2; k++) {
+                int len = in.readInt();
+                if (len > 0) {
+                    in.skipBytes(len);
+                }
+            }
+        }
+        return pid;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+
+    // heap page geometry, as computed by HeapPage
+
+    private static int tupleSize(PageId pid) {
+        return Database.getCatalog().getTupleDesc(pid.getTableId()).getSize();
+    }
+
+    private static int numSlots(int tupleSize) {
+        return (BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1);
+    }
+
+    private static int headerSize(int tupleSize) {
+        return (numSlots(tupleSize) + 7) / 8;
+    }
+
+    private static boolean isSlotUsed(byte[] data, int slot) {
+        return (data[slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int start, int len) {
+        for (int i = start; i < start + len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte byteAt(byte[] b, int i) {
+        return i < b.length ? b[i] : 0;
+    }
+
+    private static byte[] copyRange(byte[] b, int start, int end) {
+        byte[] r = new byte[end - start];
+        if (start < b.length) {
+            System.arraycopy(b, start, r, 0, Math.min(end, b.length) - start);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Registry of the kinds of pages SimpleDB stores, used to write page ids and
+ * rebuild pages without reflection.  Each kind has a one byte code that is
+ * written ahead of its page ids in the log and in the BufferPool's hot page
+ * file; codes are persistent and must never be reused.
+ */
+public enum PageType {
+    HEAP(1) {
+        @Override
+        void writeId(DataOutput out, PageId pid) throws IOException {
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.pageNumber());
+        }
+
+        @Override
+        PageId readId(DataInput in) throws IOException {
+            int tableId = in.readInt();
+            return new HeapPageId(tableId, in.readInt());
+        }
+
+        @Override
+        PageId idInTable(PageId pid, int tableId) {
+            return new HeapPageId(tableId, pid.pageNumber());
+        }
+
+        @Override
+        public Page create(PageId pid, byte[] data) throws IOException {
+            return new HeapPage((HeapPageId)pid, data);
+        }
+
+    }, BTREE(2) {
+        @Override
+        void writeId(DataOutput out, PageId pid) throws IOException {
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.pageNumber());
+            out.writeInt(((BTreePageId)pid).pgcateg());
+        }
+
+        @Override
+        PageId readId(DataInput in) throws IOException {
+            int tableId = in.readInt();
+            int pgNo = in.readInt();
+            return new BTreePageId(tableId, pgNo, in.readInt());
+        }
+
+        @Override
+        PageId idInTable(PageId pid, int tableId) {
+            return new BTreePageId(tableId, pid.pageNumber(), ((BTreePageId)pid).pgcateg());
+        }
+
+        @Override
+        public Page create(PageId pid, byte[] data) throws IOException {
+            BTreePageId id = (BTreePageId)pid;
+            switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(id, data);
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(id, data);
+            }
+            int keyField = ((BTreeFile)Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+            if (id.pgcateg() == BTreePageId.INTERNAL) {
+                return new BTreeInternalPage(id, data, keyField);
+            }
+            return new BTreeLeafPage(id, data, keyField);
+        }
+    };
+
+    private static final PageType[] byCode = new PageType[3];
+    static {
+        for (PageType t : values()) {
+            byCode[t.code] = t;
+        }
+    }
+
+    private final int code;
+
+    private PageType(int code) {
+        this.code = code;
+    }
+
+    /** Write the fields of a page id of this kind, without its code. */
+    abstract void writeId(DataOutput out, PageId pid) throws IOException;
+
+    /** Read the fields of a page id of this kind, without its code. */
+    abstract PageId readId(DataInput in) throws IOException;
+
+    /** @return the id of the same page in another table of this kind */
+    abstract PageId idInTable(PageId pid, int tableId);
+
+    /**
+     * @return a page of this kind, as its DbFile would read it, holding the
+     *   given serialized data
+     */
+    public abstract Page create(PageId pid, byte[] data) throws IOException;
+
+    /** @return the kind of page pid identifies */
+    public static PageType of(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP;
+        }
+        if (pid instanceof BTreePageId) {
+            return BTREE;
+        }
+        throw new IllegalArgumentException("unknown page id class " + pid.getClass().getName());
+    }
+
+    /** Write a page id as its one byte kind code followed by its fields. */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        PageType t = of(pid);
+        out.writeByte(t.code);
+        t.writeId(out, pid);
+    }
+
+    /** Read a page id written by writePageId. */
+    public static PageId readPageId(DataInput in) throws IOException {
+        int code = in.readByte();
+        if (code <= 0 || code >= byCode.length || byCode[code] == null) {
+            throw new IOException("unknown page type code " + code);
+        }
+        return byCode[code].readId(in);
+    }
+
+    /** @return the id of the page with pid's number and kind in the given
+        table, such as a copy of pid's table */
+    public static PageId withTableId(PageId pid, int tableId) {
+        return of(pid).idInTable(pid, tableId);
+    }
+
+    /** Rebuild a page of the kind its DbFile would read for pid. */
+    public static Page newPage(PageId pid, byte[] data) throws IOException {
+        return of(pid).create(pid, data);
+    }
+}
@@ -510,8 +510,16 @@ public class Parser {
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
+                if (replica != null && !(s instanceof ZQuery)) {
+                    System.out.println("The tables of a replica are read only");
+                    return;
+                }
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a lone SELECT reads a snapshot, without locks or log
+                    // records, except on a replica, where only locks keep it
+                    // from seeing a transaction the replica is applying
+                    curtrans = new Transaction(s instanceof ZQuery && replica == null ?
+                            Transaction.Mode.READ_ONLY : Transaction.Mode.LOCKING);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -585,7 +593,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 8) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,20 +603,42 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]"
+            + " [-replica primaryCatalogFile primaryLogFile startLsn]";
     static final int SLEEP_TIME = 5000;
+    static final String HOT_PAGES_FILE = "hotpages";
+    static final long HOT_PAGES_DUMP_INTERVAL = 60000;
+    static final long CHECKPOINT_INTERVAL = 30000;
 
     protected void shutdown() {
+        if (replica != null) {
+            try {
+                replica.stop();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    /** Follows a primary's log into the tables, if started with -replica */
+    protected LogReplica replica = null;
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
+        // warm the buffer pool with the pages that were hot before the last run
+        File hotPages = new File(HOT_PAGES_FILE);
+        Database.getBufferPool().startPreload(hotPages);
+        Database.getBufferPool().startHotPageDumper(hotPages, HOT_PAGES_DUMP_INTERVAL);
+
+        // checkpoint periodically so that the log can be truncated
+        Database.getLogFile().startCheckpointer(CHECKPOINT_INTERVAL);
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -625,6 +655,21 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-replica")) {
+                    if (i + 3 >= argv.length) {
+                        System.out.println("Expected primary catalog, primary log and start LSN after -replica\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    Catalog primary = new Catalog();
+                    primary.loadSchema(argv[++i]);
+                    File primaryLog = new File(argv[++i]);
+                    long startLsn = Long.parseLong(argv[++i]);
+                    replica = new LogReplica(primaryLog,
+                            LogReplica.mapTables(primary, Database.getCatalog()), startLsn);
+                    replica.start();
+                    System.out.println("Following " + primaryLog + " from LSN " + startLsn);
+
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
@@ -0,0 +1,347 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * ShadowHeapFile is a HeapFile updated by shadow paging instead of write
+ * ahead logging, for read mostly tables that are updated rarely and in
+ * bulk.
+ * <p>
+ * Pages are stored in blocks of the file found through a page table,
+ * which is anchored by a root block the way a BTreeRootPtrPage anchors a
+ * BTreeFile.  The page writes of a transaction go to free blocks, out of
+ * sight of the page table, until it commits: the commit writes the page
+ * table blocks that changed to free blocks too, forces the file, then
+ * writes a root naming them.  Blocks 0 and 1 hold two roots, written in
+ * turn, each with a generation number and a checksum; the valid root with
+ * the highest generation is the table, so writing a root is the atomic
+ * commit point and a crash while writing one leaves the other in place.
+ * A block is only reused once the root naming it has been replaced.
+ * <p>
+ * The BufferPool logs no updates of these pages and keeps them out of the
+ * dirty page table, so updates pay no log writes and recovery, done when
+ * the file is opened, only has to pick a root.  In exchange a commit
+ * forces every page it changed along with the page table, and it is atomic
+ * for each shadow table on its own, not together with the transaction's
+ * other tables: a transaction that updates a shadow table should update
+ * no other table.  Updates of shadow tables are not seen by LogReplica or
+ * ChangeFeed, which follow the log.
+ */
+public class ShadowHeapFile extends HeapFile {
+
+    /** Blocks holding the two roots */
+    static final int ROOT_BLOCKS = 2;
+
+    private static final int ENTRY_SIZE = 4;
+
+    /** The latest committed root */
+    private long generation = 0;
+    private int[] pageTable = new int[0]; // page number -> block, or -1
+    private int[] tableBlocks = new int[0]; // blocks holding the page table
+    private final BitSet used = new BitSet();
+
+    // uncommitted page writes: transaction -> page number -> block
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> pending =
+        new HashMap<TransactionId, HashMap<Integer, Integer>>();
+    private final HashMap<Integer, TransactionId> pendingOwner = new HashMap<Integer, TransactionId>();
+
+    // stands for writers outside any transaction, whose writes commit at once
+    private final TransactionId autocommit = new TransactionId();
+
+    /**
+     * Opens a shadow paged heap file, reading its latest committed root.
+     * An empty or missing file is an empty table.
+     *
+     * @param f the file that stores the table
+     * @param td the schema of the table
+     */
+    public ShadowHeapFile(File f, TupleDesc td) throws IOException {
+        super(f, td);
+        used.set(0, ROOT_BLOCKS);
+        if (!f.exists()) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            for (int slot = 0; slot < ROOT_BLOCKS; slot++) {
+                readRoot(file, slot);
+            }
+            Arrays.fill(pageTable, -1);
+            for (int b = 0; b < tableBlocks.length; b++) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBlock(file, tableBlocks[b])));
+                used.set(tableBlocks[b]);
+                for (int i = b * entriesPerBlock(); i < Math.min(pageTable.length, (b + 1) * entriesPerBlock()); i++) {
+                    pageTable[i] = in.readInt();
+                    if (pageTable[i] >= 0) {
+                        used.set(pageTable[i]);
+                    }
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /** @return the generation of the latest committed root */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    private static int entriesPerBlock() {
+        return BufferPool.getPageSize() / ENTRY_SIZE;
+    }
+
+    /** @return the most page table blocks a root can name */
+    private static int maxTableBlocks() {
+        // generation, number of pages, number of table blocks, checksum
+        return (BufferPool.getPageSize() - 8 - 4 - 4 - 4) / ENTRY_SIZE;
+    }
+
+    /** Adopt the root in slot if it is valid and newer than the one read so far.
+        Sets the size of pageTable, not its entries. */
+    private void readRoot(RandomAccessFile file, int slot) throws IOException {
+        if (file.length() < (long)(slot + 1) * BufferPool.getPageSize()) {
+            return;
+        }
+        byte[] data = readBlock(file, slot);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long gen = in.readLong();
+        int numPages = in.readInt();
+        int numBlocks = in.readInt();
+        if (gen <= generation || numPages < 0 || numBlocks < 0 || numBlocks > maxTableBlocks()) {
+            return;
+        }
+        int[] blocks = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blocks[i] = in.readInt();
+        }
+        int length = 8 + 4 + 4 + numBlocks * ENTRY_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if (in.readInt() != (int)crc.getValue()) {
+            return; // torn by a crash
+        }
+        generation = gen;
+        pageTable = new int[numPages];
+        tableBlocks = blocks;
+    }
+
+    private void writeRoot(RandomAccessFile file, long gen, int numPages, int[] blocks) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeLong(gen);
+        out.writeInt(numPages);
+        out.writeInt(blocks.length);
+        for (int block : blocks) {
+            out.writeInt(block);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b.toByteArray());
+        out.writeInt((int)crc.getValue());
+        byte[] data = Arrays.copyOf(b.toByteArray(), BufferPool.getPageSize());
+        writeBlock(file, (int)(gen % ROOT_BLOCKS), data);
+    }
+
+    private static byte[] readBlock(RandomAccessFile file, int block) throws IOException {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        file.seek((long)block * BufferPool.getPageSize());
+        file.readFully(data);
+        return data;
+    }
+
+    private static void writeBlock(RandomAccessFile file, int block, byte[] data) throws IOException {
+        file.seek((long)block * BufferPool.getPageSize());
+        file.write(data, 0, BufferPool.getPageSize());
+    }
+
+    private int allocate() {
+        int b = used.nextClearBit(ROOT_BLOCKS);
+        used.set(b);
+        return b;
+    }
+
+    /** @return the block holding page pgNo as tid sees it: its own
+        uncommitted write if it has one, else the committed version; -1 if
+        there is none */
+    private int blockOf(int pgNo, TransactionId tid) {
+        if (tid != null && tid.equals(pendingOwner.get(pgNo))) {
+            return pending.get(tid).get(pgNo);
+        }
+        return pgNo < pageTable.length ? pageTable[pgNo] : -1;
+    }
+
+    /** @return true if a transaction wrote page pid and has not committed */
+    synchronized boolean isPending(PageId pid) {
+        return pendingOwner.containsKey(pid.pageNumber());
+    }
+
+    /** Reads the committed version of a page; see DbFile.java. */
+    public synchronized Page readPage(PageId pid) {
+        return readPage(pid, null);
+    }
+
+    /**
+     * Reads page pid as transaction tid sees it, including the writes tid
+     * has not committed yet.  Such a page is given the committed version
+     * as its before image.  Called by the BufferPool with tid holding a
+     * lock on the page.
+     */
+    synchronized HeapPage readPage(PageId pid, TransactionId tid) {
+        int pgNo = pid.pageNumber();
+        int block = blockOf(pgNo, tid);
+        if (block < 0) {
+            throw new IllegalArgumentException("Read past end of table");
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(getFile(), "r");
+            try {
+                HeapPage page = new HeapPage((HeapPageId)pid, readBlock(file, block));
+                int committed = blockOf(pgNo, null);
+                if (committed != block) {
+                    page.setBeforeImage(committed < 0 ? HeapPage.createEmptyPageData()
+                                        : readBlock(file, committed));
+                }
+                return page;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read page " + pgNo + ": " + e.getMessage());
+        }
+    }
+
+    /** Reads committed pages for the preloader, leaving out those with
+        uncommitted writes, which only their writer may read. */
+    public synchronized ArrayList<Page> readPages(int first, int count) throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        count = Math.min(count, numPages() - first);
+        for (int i = 0; i < count; i++) {
+            HeapPageId pid = new HeapPageId(getId(), first + i);
+            if (!(isPending(pid))) {
+                pages.add(readPage(pid));
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Writes a page to a free block.  The write belongs to the transaction
+     * that dirtied the page, or that wrote it before, and is seen through
+     * the page table once commit() is called for it; a page no transaction
+     * wrote, such as a new empty page, is committed at once.
+     */
+    public synchronized void writePage(Page page) throws IOException {
+        int pgNo = page.getId().pageNumber();
+        TransactionId tid = page.isDirty();
+        if (tid == null) {
+            tid = pendingOwner.get(pgNo);
+        }
+        if (tid == null) {
+            tid = autocommit;
+        }
+        HashMap<Integer, Integer> writes = pending.get(tid);
+        if (writes == null) {
+            writes = new HashMap<Integer, Integer>();
+            pending.put(tid, writes);
+        }
+        Integer block = writes.get(pgNo);
+        if (block == null) {
+            block = allocate();
+            writes.put(pgNo, block);
+            pendingOwner.put(pgNo, tid);
+        }
+        RandomAccessFile file = new RandomAccessFile(getFile(), "rw");
+        try {
+            writeBlock(file, block, page.getPageData());
+        } finally {
+            file.close();
+        }
+        if (tid == autocommit) {
+            commit(tid);
+        }
+    }
+
+    public synchronized int numPages() {
+        return pageTable.length;
+    }
+
+    /**
+     * Make the pages written for tid part of the table: write the page
+     * table blocks they change to free blocks and switch to a new root.
+     * Called by the BufferPool once tid's pages are written.
+     */
+    synchronized void commit(TransactionId tid) throws IOException {
+        HashMap<Integer, Integer> writes = pending.get(tid);
+        if (writes == null) {
+            return;
+        }
+        int numPages = pageTable.length;
+        for (Integer pgNo : writes.keySet()) {
+            numPages = Math.max(numPages, pgNo + 1);
+        }
+        int numBlocks = (numPages + entriesPerBlock() - 1) / entriesPerBlock();
+        if (numBlocks > maxTableBlocks()) {
+            throw new IOException("shadow table " + getFile() + " is full");
+        }
+        pending.remove(tid);
+
+        int[] table = Arrays.copyOf(pageTable, numPages);
+        Arrays.fill(table, pageTable.length, numPages, -1);
+        List<Integer> freed = new ArrayList<Integer>();
+        TreeSet<Integer> changed = new TreeSet<Integer>();
+        for (Map.Entry<Integer, Integer> e : writes.entrySet()) {
+            int pgNo = e.getKey();
+            if (table[pgNo] >= 0) {
+                freed.add(table[pgNo]);
+            }
+            table[pgNo] = e.getValue();
+            changed.add(pgNo / entriesPerBlock());
+            pendingOwner.remove(pgNo);
+        }
+
+        int[] blocks = Arrays.copyOf(tableBlocks, numBlocks);
+        RandomAccessFile file = new RandomAccessFile(getFile(), "rw");
+        try {
+            for (Integer b : changed) {
+                if (b < tableBlocks.length) {
+                    freed.add(tableBlocks[b]);
+                }
+                blocks[b] = allocate();
+                ByteArrayOutputStream data = new ByteArrayOutputStream(BufferPool.getPageSize());
+                DataOutputStream out = new DataOutputStream(data);
+                for (int i = b * entriesPerBlock(); i < (b + 1) * entriesPerBlock(); i++) {
+                    out.writeInt(i < numPages ? table[i] : -1);
+                }
+                writeBlock(file, blocks[b], data.toByteArray());
+            }
+            // the pages and page table must be on disk before the root names them
+            file.getChannel().force(false);
+            writeRoot(file, generation + 1, numPages, blocks);
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+
+        generation++;
+        pageTable = table;
+        tableBlocks = blocks;
+        for (Integer b : freed) {
+            used.clear(b);
+        }
+    }
+
+    /** Drop the pages written for tid.  Called by the BufferPool when tid
+        aborts. */
+    synchronized void abort(TransactionId tid) {
+        HashMap<Integer, Integer> writes = pending.remove(tid);
+        if (writes == null) {
+            return;
+        }
+        for (Map.Entry<Integer, Integer> e : writes.entrySet()) {
+            pendingOwner.remove(e.getKey());
+            used.clear(e.getValue());
+        }
+    }
+}
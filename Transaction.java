@@ -8,16 +8,57 @@ import java.io.*;
  */
 
 public class Transaction {
+    /** How a transaction isolates itself from concurrent ones. */
+    public enum Mode {
+        /** Two-phase locking through the LockManager. */
+        LOCKING,
+        /**
+         * Reads a snapshot of the committed database without locks and
+         * cannot write.  Writes no log records and never forces the log.
+         */
+        READ_ONLY,
+        /** Runs without locks on private page copies, validated at commit. */
+        OPTIMISTIC
+    }
+
+    /** When a commit returns relative to its COMMIT record reaching disk. */
+    public enum Durability {
+        /** Commit returns once the COMMIT record is forced to disk. */
+        SYNC,
+        /**
+         * Commit returns once the COMMIT record is in the log buffer; the
+         * log writer forces it within LogFile.getAsyncCommitDelay()
+         * milliseconds.  A crash may lose transactions committed in that
+         * window, but never part of one.
+         */
+        ASYNC
+    }
+
     private final TransactionId tid;
+    private final Mode mode;
+    private Durability durability;
     volatile boolean started = false;
 
     public Transaction() {
+        this(Mode.LOCKING);
+    }
+
+    public Transaction(Mode mode) {
         tid = new TransactionId();
+        this.mode = mode;
+        this.durability = Database.getLogFile().getDefaultDurability();
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (mode == Mode.READ_ONLY) {
+            // nothing to undo or redo, so nothing to log
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        } else if (mode == Mode.OPTIMISTIC) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +70,38 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /** Set how this transaction's commit is made durable.  Defaults to
+        the LogFile's default durability. */
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Finish the transaction.  An optimistic transaction is validated
+     * first; if validation fails it is aborted instead.
+     *
+     * @throws TransactionAbortedException if the transaction failed validation
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && mode == Mode.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validateOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            } catch (DbException e) {
+                transactionComplete(true);
+                throw new IOException(e.getMessage());
+            }
+        }
         transactionComplete(false);
     }
 
@@ -42,14 +113,22 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && mode == Mode.READ_ONLY) {
+            Database.getBufferPool().transactionComplete(tid, !abort); // end the snapshot
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                if (durability == Durability.ASYNC) {
+                    // log the updates only; the pages are written later, after a force
+                    Database.getBufferPool().logPages(tid);
+                } else {
+                    //write all the dirty pages for this transaction out
+                    Database.getBufferPool().flushPages(tid);
+                }
+                Database.getLogFile().logCommit(tid, durability);
             }
 
             try {
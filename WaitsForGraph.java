@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WaitsForGraph records which transactions each blocked transaction is
+ * waiting for.  Edges are added when a transaction blocks and removed when
+ * it is granted its lock or gives up, so the graph is never rebuilt.  Cycles
+ * are found on demand by the LockManager's deadlock detector, which works on
+ * a copy of the graph and so never blocks lock requests.
+ *
+ * @Threadsafe
+ */
+public class WaitsForGraph {
+
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> edges =
+        new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
+
+    /** Record that tid now waits for exactly the given transactions. */
+    public void setWaitsFor(TransactionId tid, Set<TransactionId> blockers) {
+        edges.put(tid, new HashSet<TransactionId>(blockers));
+    }
+
+    /** @return the transactions tid currently waits for, or null if it is not blocked */
+    public Set<TransactionId> getWaitsFor(TransactionId tid) {
+        return edges.get(tid);
+    }
+
+    /** Remove the outgoing edges of tid, once it no longer waits. */
+    public void remove(TransactionId tid) {
+        edges.remove(tid);
+    }
+
+    public boolean isEmpty() {
+        return edges.isEmpty();
+    }
+
+    /**
+     * Find a set of transactions whose abort breaks every cycle in the
+     * graph.  From each cycle the youngest transaction (the one with the
+     * largest id), which has done the least work, is chosen.
+     *
+     * @return the transactions to abort, empty if there is no deadlock
+     */
+    public List<TransactionId> findVictims() {
+        HashMap<TransactionId, Set<TransactionId>> graph =
+            new HashMap<TransactionId, Set<TransactionId>>(edges);
+        List<TransactionId> victims = new ArrayList<TransactionId>();
+
+        List<TransactionId> cycle = findCycle(graph);
+        while (cycle != null) {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
+                }
+            }
+            victims.add(victim);
+            graph.remove(victim);
+            cycle = findCycle(graph);
+        }
+
+        return victims;
+    }
+
+    /** Depth-first search for a cycle; returns its members or null. */
+    private List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        HashSet<TransactionId> done = new HashSet<TransactionId>();
+
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) {
+                continue;
+            }
+
+            // iterative DFS keeping the current path on a stack
+            LinkedList<TransactionId> path = new LinkedList<TransactionId>();
+            LinkedList<Iterator<TransactionId>> its = new LinkedList<Iterator<TransactionId>>();
+            HashSet<TransactionId> onPath = new HashSet<TransactionId>();
+            path.addLast(start);
+            onPath.add(start);
+            its.addLast(successors(graph, start));
+
+            while (!(path.isEmpty())) {
+                Iterator<TransactionId> it = its.getLast();
+                if (!(it.hasNext())) {
+                    TransactionId t = path.removeLast();
+                    its.removeLast();
+                    onPath.remove(t);
+                    done.add(t);
+                    continue;
+                }
+
+                TransactionId next = it.next();
+                if (onPath.contains(next)) {
+                    return new ArrayList<TransactionId>(path.subList(path.indexOf(next), path.size()));
+                }
+                if (!(done.contains(next))) {
+                    path.addLast(next);
+                    onPath.add(next);
+                    its.addLast(successors(graph, next));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Iterator<TransactionId> successors(Map<TransactionId, Set<TransactionId>> graph,
+                                               TransactionId tid) {
+        Set<TransactionId> s = graph.get(tid);
+        if (s == null) {
+            return new HashSet<TransactionId>().iterator();
+        }
+        return s.iterator();
+    }
+}